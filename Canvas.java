@@ -1,14 +1,99 @@
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Iterator;
 import java.util.Stack;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class Canvas {
     private static DrawingPanel drawingPanel;
@@ -32,6 +117,11 @@ public class Canvas {
 
         MainPanel mainPanel = new MainPanel(drawingPanel);
         frame.add(mainPanel, BorderLayout.NORTH);
+
+        HistoryPanel historyPanel = new HistoryPanel(drawingPanel);
+        JScrollPane historyScrollPane = new JScrollPane(historyPanel, JScrollPane.VERTICAL_SCROLLBAR_NEVER,
+                JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+        frame.add(historyScrollPane, BorderLayout.SOUTH);
         frame.setResizable(false);
         frame.setVisible(true);
     }
@@ -56,60 +146,178 @@ static class DrawingPanel extends JPanel {
         private boolean isDrawing = false;
         private boolean isErasing = false;
         private static final Color ERASER_COLOR = Color.WHITE;
+        private static final int ERASER_SIZE = 10;
+        private static final int ERASER_HARDNESS = 50;
+        private int currentHardness = 100;
+        private int currentOpacity = 100;
+        private final BrushEngine brush = new BrushEngine();
+        // One engine per peer, since the strokes of several peers can arrive interleaved.
+        private final Map<Integer, BrushEngine> remoteBrushes = new HashMap<>();
+        private final BrushEngine previewBrush = new BrushEngine();
+        private RenderQuality renderQuality = RenderQuality.fromSystemProperty();
+        private boolean animating = false;
         private BufferedImage bufferImage;
         private Graphics2D bufferGraphics;
-        private Stack<BufferedImage> undoStack;
-        private Stack<BufferedImage> redoStack;
+        private boolean isSelecting = false;
+        private Stack<HistoryEntry> undoStack;
+        private Stack<HistoryEntry> redoStack;
+        // The undo history drops its oldest steps beyond either limit.
+        static final int MAX_HISTORY_DEPTH = 100;
+        static final long MAX_HISTORY_BYTES = 256L * 1024 * 1024;
+        private SessionClient session;
+        private InputTraceRecorder traceRecorder;
+        private volatile BufferedImage importLayer;
+        private FilterPipeline runningFilter;
+        // The project file the canvas was opened from or last saved to, if any. Until all of its
+        // tiles have been decoded, pixels must be loaded with ensureLoaded before they are used.
+        private ProjectFile project;
+
+        static final int FLIP_NONE = 0;
+        static final int FLIP_HORIZONTAL = 1;
+        static final int FLIP_VERTICAL = 2;
+
+        // One id per history position (0 is the state before the first undoable action), used to
+        // look up the thumbnail of that state. Positions past the redo stack are discarded.
+        private final List<Long> historyStates = new ArrayList<>();
+        private long nextHistoryStateId;
+        private final HistoryThumbnails thumbnails = new HistoryThumbnails();
+        private Rectangle pendingThumbnailRegion;
+        private Runnable historyListener;
+
+        // Selection state. selectionImage is a getSubimage view of bufferImage over selectionSource,
+        // so selecting and dragging never copy pixels; selectionBounds is where the selection is
+        // currently previewed while it is being moved.
+        private Rectangle selectionSource;
+        private Rectangle selectionBounds;
+        private BufferedImage selectionImage;
+        private Point selectionAnchor;
+        private Point moveStart;
+
+        // Gesture being previewed on overlayImage. The points are replayed at full quality into
+        // bufferImage when the mouse is released.
+        private BufferedImage overlayImage;
+        private Rectangle gestureBounds;
+        private int[] gestureX = new int[256];
+        private int[] gestureY = new int[256];
+        private int gestureCount;
+        private int gestureArgb, gestureSize, gestureHardness, gestureOpacity;
+        private boolean gestureErasing;
+        private boolean gesturePreviewed;
+        private StrokeSnapshot gestureBefore;
 
         public DrawingPanel() {
 
             setBackground(Color.WHITE);
             undoStack = new Stack<>();
             redoStack = new Stack<>();
+            historyStates.add(nextHistoryStateId++);
+            thumbnails.setListener(() -> {
+                if (historyListener != null) {
+                    historyListener.run();
+                }
+            });
 
             addMouseListener(new MouseAdapter() {
                 @Override
                 public void mousePressed(MouseEvent e) {
                     prevX = e.getX();
                     prevY = e.getY();
+                    if (isSelecting) {
+                        beginSelectionGesture(e.getPoint());
+                        return;
+                    }
+                    brush.beginStroke();
+                    previewBrush.beginStroke();
+                    gestureCount = 0;
+                    gestureBounds = null;
+                    gesturePreviewed = renderQuality.previewsGestures();
+                    if (!gesturePreviewed && bufferImage != null) {
+                        // Strokes drawn straight into the canvas need the pixels from before the
+                        // stroke; they are copied tile by tile as the stroke reaches them.
+                        gestureBefore = new StrokeSnapshot(bufferImage);
+                    }
+                    recordGesturePoint(prevX, prevY);
                     isDrawing = true;
                 }
 
                 @Override
                 public void mouseReleased(MouseEvent e) {
+                    if (isSelecting) {
+                        endSelectionGesture();
+                        return;
+                    }
                     isDrawing = false;
-                    updateUndoRedoStack(bufferImage);
+                    commitGesture();
                 }
             });
 
             addMouseMotionListener(new MouseAdapter() {
                 @Override
                 public void mouseDragged(MouseEvent e) {
+                    if (isSelecting) {
+                        dragSelection(e.getPoint());
+                        return;
+                    }
                     if (isDrawing || isErasing) {
                         int x = e.getX();
                         int y = e.getY();
 
                         if (bufferGraphics != null) {
-                            if (!isErasing) {
-                                bufferGraphics.setColor(currentColor);
-                                bufferGraphics.setStroke(new BasicStroke(currentThickness));
-                                bufferGraphics.drawLine(prevX, prevY, x, y);
+                            int size = isErasing ? ERASER_SIZE : currentThickness;
+                            int hardness = isErasing ? ERASER_HARDNESS : currentHardness;
+                            int opacity = isErasing ? 100 : currentOpacity;
+                            BrushEngine engine;
+                            if (gesturePreviewed) {
+                                engine = previewBrush;
+                                drawPreviewSegment(prevX, prevY, x, y, size, hardness, opacity);
                             } else {
-                                bufferGraphics.setColor(ERASER_COLOR);
-                                bufferGraphics.fillRect(x - 5, y - 5, 10, 10);
+                                engine = brush;
+                                brush.configure(currentColor.getRGB(), size, hardness, opacity, isErasing,
+                                        renderQuality.antialiasesCommits());
+                                Rectangle reach = segmentReach(brush, prevX, prevY, x, y);
+                                ensureLoaded(reach);
+                                if (gestureBefore == null) {
+                                    gestureBefore = new StrokeSnapshot(bufferImage);
+                                }
+                                gestureBefore.cover(reach);
+                                drawSegment(brush, bufferImage, prevX, prevY, x, y);
+                                addGestureBounds(brush);
+                            }
+                            if (session != null) {
+                                session.sendSegment(prevX, prevY, x, y, currentColor.getRGB(), engine.getSize(),
+                                        hardness, engine.getOpacity(), isErasing);
                             }
                         }
 
                         prevX = x;
                         prevY = y;
-                        repaint();
                     }
                 }
             });
+
+            bindKey(KeyStroke.getKeyStroke(KeyEvent.VK_C, InputEvent.CTRL_DOWN_MASK), "copySelection",
+                    this::copySelection);
+            bindKey(KeyStroke.getKeyStroke(KeyEvent.VK_V, InputEvent.CTRL_DOWN_MASK), "pasteClipboard",
+                    this::pasteFromClipboard);
+            bindKey(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "clearSelection", () -> {
+                recordAction("deselect");
+                clearSelection();
+            });
+        }
+
+        private void bindKey(KeyStroke key, String name, Runnable action) {
+            getInputMap(WHEN_IN_FOCUSED_WINDOW).put(key, name);
+            getActionMap().put(name, new AbstractAction() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    action.run();
+                }
+            });
         }
 
         public void playAnimationsredo() {
             if (!redoStack.isEmpty()) {
+                animating = true;
                 Timer timer = new Timer(500, new ActionListener() {
                     @Override
                     public void actionPerformed(ActionEvent e) {
@@ -117,6 +325,7 @@ static class DrawingPanel extends JPanel {
                             redo();
                         } else {
                             ((Timer) e.getSource()).stop();
+                            stopAnimation();
                         }
                     }
                 });
@@ -126,6 +335,7 @@ static class DrawingPanel extends JPanel {
 
         public void playAnimationsUndo() {
             if (!undoStack.isEmpty()) {
+                animating = true;
                 Timer timer = new Timer(500, new ActionListener() {
                     @Override
                     public void actionPerformed(ActionEvent e) {
@@ -133,6 +343,7 @@ static class DrawingPanel extends JPanel {
                             undo();
                         } else {
                             ((Timer) e.getSource()).stop();
+                            stopAnimation();
                         }
                     }
                 });
@@ -140,7 +351,26 @@ static class DrawingPanel extends JPanel {
             }
         }
 
+        private void stopAnimation() {
+            animating = false;
+            repaint();
+        }
+
+        public RenderQuality getRenderQuality() {
+            return renderQuality;
+        }
+
+        public void setRenderQuality(RenderQuality quality) {
+            recordAction("quality", quality.name());
+            renderQuality = quality;
+            if (bufferGraphics != null) {
+                quality.applyHints(bufferGraphics, false);
+            }
+            repaint();
+        }
+
         public void setPenSettings(Color color, int thickness) {
+            recordAction("pen", color.getRGB(), thickness);
             if (isErasing) {
                 currentColor = ERASER_COLOR;
             } else {
@@ -165,189 +395,5006 @@ static class DrawingPanel extends JPanel {
             currentThickness = thickness;
         }
 
+        public int getCurrentHardness() {
+            return currentHardness;
+        }
+
+        public int getCurrentOpacity() {
+            return currentOpacity;
+        }
+
+        /**
+         * Sets the brush hardness and opacity, both as percentages.
+         */
+        public void setBrushSettings(int hardness, int opacity) {
+            recordAction("brush", hardness, opacity);
+            currentHardness = hardness;
+            currentOpacity = opacity;
+        }
+
         public void setEraser(boolean eraserMode) {
+            recordAction("eraser", eraserMode);
             isErasing = eraserMode;
         }
 
-        public void clearPanel() {
-            if (bufferGraphics != null) {
-                bufferGraphics.setColor(Color.WHITE);
-                bufferGraphics.fillRect(0, 0, getWidth(), getHeight());
-                repaint();
-            }
+        public boolean isSelecting() {
+            return isSelecting;
         }
 
-        public void addText(String text, Font font, Point position, Color textColor) {
-            if (bufferGraphics != null) {
-                bufferGraphics.setFont(font);
-                bufferGraphics.setColor(textColor);
-                bufferGraphics.drawString(text, position.x, position.y);
-                repaint();
+        public void setSelecting(boolean selectMode) {
+            recordAction("select", selectMode);
+            isSelecting = selectMode;
+            if (!selectMode) {
+                clearSelection();
             }
         }
 
-        private void updateUndoRedoStack(BufferedImage image) {
-            BufferedImage copy = copyImage(image);
-            undoStack.push(copy);
-            redoStack.clear();
+        public void clearSelection() {
+            Rectangle dirty = selectionRepaintBounds();
+            selectionSource = null;
+            selectionBounds = null;
+            selectionImage = null;
+            selectionAnchor = null;
+            moveStart = null;
+            if (dirty != null) {
+                repaint(dirty);
+            }
         }
 
-        public void undo() {
-            if (!undoStack.isEmpty()) {
-                BufferedImage lastImage = undoStack.pop();
-                redoStack.push(copyImage(bufferImage));
-                bufferGraphics.drawImage(lastImage, 0, 0, this);
-                repaint();
+        private void beginSelectionGesture(Point point) {
+            if (bufferImage == null) {
+                return;
+            }
+            if (selectionImage != null && selectionBounds.contains(point)) {
+                moveStart = point;
+            } else {
+                clearSelection();
+                selectionAnchor = point;
+                selectionBounds = new Rectangle(point);
+            }
+        }
 
+        /**
+         * Updates the rubber band or the move preview. Only the area covered by the previous and
+         * the new selection outline is repainted.
+         */
+        private void dragSelection(Point point) {
+            Rectangle before = selectionRepaintBounds();
+            if (moveStart != null) {
+                selectionBounds.setLocation(selectionSource.x + point.x - moveStart.x,
+                        selectionSource.y + point.y - moveStart.y);
+            } else if (selectionAnchor != null) {
+                selectionBounds = new Rectangle(selectionAnchor);
+                selectionBounds.add(point);
+            } else {
+                return;
             }
-            if (undoStack.isEmpty()) {
-                redoStack.push(copyImage(bufferImage));
+            Rectangle after = selectionRepaintBounds();
+            repaint(before == null ? after : before.union(after));
+        }
 
-                bufferGraphics.setColor(Color.WHITE);
-                bufferGraphics.fillRect(0, 0, getWidth(), getHeight());
-                repaint();
+        private void endSelectionGesture() {
+            if (moveStart != null) {
+                moveStart = null;
+                if (!selectionBounds.getLocation().equals(selectionSource.getLocation())) {
+                    Rectangle dirty = selectionRepaintBounds().union(grow(selectionSource));
+                    moveRegion(selectionSource, selectionBounds.x, selectionBounds.y);
+                    if (session != null) {
+                        session.sendMove(selectionSource, selectionBounds.x, selectionBounds.y);
+                    }
+                    selectRegion(selectionBounds);
+                    repaint(dirty);
+                }
+            } else if (selectionAnchor != null) {
+                selectionAnchor = null;
+                selectRegion(selectionBounds);
+            }
+        }
 
+        private void selectRegion(Rectangle region) {
+            Rectangle dirty = selectionRepaintBounds();
+            Rectangle clipped = region.intersection(new Rectangle(0, 0, bufferImage.getWidth(), bufferImage.getHeight()));
+            if (clipped.isEmpty()) {
+                selectionSource = null;
+                selectionBounds = null;
+                selectionImage = null;
+            } else {
+                ensureLoaded(clipped);
+                selectionSource = clipped;
+                selectionBounds = new Rectangle(clipped);
+                selectionImage = bufferImage.getSubimage(clipped.x, clipped.y, clipped.width, clipped.height);
             }
+            Rectangle after = selectionRepaintBounds();
+            if (dirty != null || after != null) {
+                repaint(dirty == null ? after : after == null ? dirty : dirty.union(after));
+            }
+        }
 
+        private Rectangle selectionRepaintBounds() {
+            return selectionBounds == null ? null : grow(selectionBounds);
         }
 
-        public void redo() {
-            if (!redoStack.isEmpty()) {
-                BufferedImage lastImage = redoStack.pop();
-                undoStack.push(copyImage(bufferImage));
-                bufferGraphics.drawImage(lastImage, 0, 0, this);
-                repaint();
+        private static Rectangle grow(Rectangle r) {
+            Rectangle grown = new Rectangle(r);
+            grown.grow(2, 2);
+            return grown;
+        }
+
+        /**
+         * Moves a region of the canvas, leaving the area it vacates transparent, as the eraser
+         * does. The source and the destination are captured as two parts of one undo entry, so a
+         * long move does not copy everything between them; the capture of the source also
+         * supplies the moved pixels.
+         */
+        private void moveRegion(Rectangle source, int x, int y) {
+            Rectangle bounds = new Rectangle(0, 0, bufferImage.getWidth(), bufferImage.getHeight());
+            Rectangle src = source.intersection(bounds);
+            if (src.isEmpty()) {
+                return;
             }
+            Rectangle dst = moveTarget(source, src, x, y);
+            HistoryEntry before = captureParts(src, dst.intersection(bounds));
+            movePixels(src, before.pixels, dst.x, dst.y);
+            pushHistory(before);
         }
 
-        private BufferedImage copyImage(BufferedImage source) {
-            if (source == null)
-                return null;
+        /**
+         * Returns where src, the part of source that is on the canvas, lands when source is moved
+         * to x, y.
+         */
+        private static Rectangle moveTarget(Rectangle source, Rectangle src, int x, int y) {
+            return new Rectangle(x + src.x - source.x, y + src.y - source.y, src.width, src.height);
+        }
 
-            BufferedImage copy = new BufferedImage(source.getWidth(), source.getHeight(), source.getType());
-            Graphics2D g = copy.createGraphics();
-            g.drawImage(source, 0, 0, null);
-            g.dispose();
-            return copy;
+        private void movePixels(Rectangle src, BufferedImage pixels, int x, int y) {
+            Composite composite = bufferGraphics.getComposite();
+            bufferGraphics.setComposite(AlphaComposite.Clear);
+            bufferGraphics.fillRect(src.x, src.y, src.width, src.height);
+            bufferGraphics.setComposite(composite);
+            bufferGraphics.drawImage(pixels, x, y, null);
         }
 
-        @Override
-        protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            if (bufferImage == null) {
-                int width = getWidth();
-                int height = getHeight();
-                bufferImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-                bufferGraphics = bufferImage.createGraphics();
-                bufferGraphics.setColor(Color.WHITE);
-                bufferGraphics.fillRect(0, 0, width, height);
+        /**
+         * Captures the source of a move and, if any of it is on the canvas, its destination as
+         * one history entry.
+         */
+        private HistoryEntry captureParts(Rectangle src, Rectangle dst) {
+            ensureLoaded(src);
+            if (dst.isEmpty()) {
+                return HistoryEntry.capture(bufferImage, src);
             }
-            g.drawImage(bufferImage, 0, 0, this);
+            ensureLoaded(dst);
+            return HistoryEntry.capture(bufferImage, src, dst);
         }
 
-        public void drawVector(int x, int y) {
-            if (bufferGraphics != null) {
-                bufferGraphics.setColor(currentColor);
-                bufferGraphics.setStroke(new BasicStroke(currentThickness));
-                bufferGraphics.drawLine(0, 0, x, y);
-                updateUndoRedoStack(bufferImage);
-                repaint();
+        private void loadParts(HistoryEntry entry) {
+            for (HistoryEntry part = entry; part != null; part = part.next) {
+                ensureLoaded(part.region);
             }
         }
 
-    }
-
-    /**
-     * The MainPanel class represents a JPanel that contains various control buttons and
-     * interacts with the DrawingPanel to provide functionalities for a drawing application's
-     * user interface. 
-     * It includes buttons for selecting pen, eraser, clearing the canvas, working with shapes 
-     * and text, undo and redo actions, and saving/opening drawings.
-     * This class helps manage the user interface components and actions that enable the
-     * user to interact with the drawing area (DrawingPanel) and perform various operations.
-     */
-static class MainPanel extends JPanel {
+        private void partsChanged(HistoryEntry entry) {
+            for (HistoryEntry part = entry; part != null; part = part.next) {
+                canvasChanged(part.region);
+            }
+        }
 
-        private JButton playAnimationsButtonRedo;
+        public void copySelection() {
+            if (selectionImage == null) {
+                return;
+            }
+            // The clipboard outlives the selection, so it gets its own copy of the pixels.
+            Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+            clipboard.setContents(new ImageSelection(copyImage(selectionImage)), null);
+        }
 
-        private JButton playAnimationsButtonUndo;
+        /**
+         * Pastes an image from the system clipboard at the top-left corner of the current
+         * selection (or of the canvas) and selects it so that it can be moved.
+         */
+        public void pasteFromClipboard() {
+            if (bufferGraphics == null) {
+                return;
+            }
+            Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+            if (!clipboard.isDataFlavorAvailable(DataFlavor.imageFlavor)) {
+                return;
+            }
+            Image image;
+            try {
+                image = (Image) clipboard.getData(DataFlavor.imageFlavor);
+            } catch (UnsupportedFlavorException | IOException ex) {
+                ex.printStackTrace();
+                return;
+            }
+            int width = image.getWidth(null);
+            int height = image.getHeight(null);
+            if (width <= 0 || height <= 0) {
+                return;
+            }
+            Point position = selectionSource != null ? selectionSource.getLocation() : new Point(0, 0);
+            Rectangle target = new Rectangle(position.x, position.y, width, height)
+                    .intersection(new Rectangle(0, 0, bufferImage.getWidth(), bufferImage.getHeight()));
+            if (target.isEmpty()) {
+                return;
+            }
+            ensureLoaded(target);
+            HistoryEntry before = HistoryEntry.capture(bufferImage, target);
+            pushHistory(before);
+            bufferGraphics.drawImage(image, position.x, position.y, null);
+            sendPixels(target, before);
+            setSelecting(true);
+            selectRegion(target);
+            repaint(grow(target));
+        }
 
-        private DrawingPanel drawingPanel;
+        public void setSession(SessionClient session) {
+            this.session = session;
+        }
 
-        public MainPanel(DrawingPanel panel) {
-            this.drawingPanel = panel;
-            setLayout(new FlowLayout(FlowLayout.CENTER));
+        public SessionClient getSession() {
+            return session;
+        }
 
-            JButton penButton = createPenButton();
-            add(penButton);
+        public void clearPanel() {
+            if (bufferGraphics != null) {
+                recordAction("clear");
+                updateUndoRedoStack(bufferImage);
+                fillBackground();
+                if (session != null) {
+                    session.sendClear();
+                }
+                repaint();
+            }
+        }
 
-            JButton eraserButton = createEraserButton();
-            add(eraserButton);
+        public void addText(String text, Font font, Point position, Color textColor) {
+            if (bufferGraphics != null) {
+                recordAction("text", text, font.getName(), font.getStyle(), font.getSize(), position.x, position.y,
+                        textColor.getRGB());
+                Rectangle bounds = textBounds(text, font, position.x, position.y);
+                recordRegion(bounds);
+                drawText(text, font, position.x, position.y, textColor);
+                if (session != null) {
+                    session.sendText(text, font, position.x, position.y, textColor);
+                }
+                repaint(bounds);
+            }
+        }
 
-            JButton clearButton = createClearButton();
-            add(clearButton);
+        /**
+         * Applies a batch of operations received from a shared session. Remote operations go
+         * through the same drawing methods as local ones but are not echoed back to the session.
+         * The areas the whole batch can reach are captured once before any of it is drawn, so
+         * that the change can be carried into the local history afterwards in one pass.
+         */
+        public void applyOperations(List<DrawOp> ops) {
+            if (bufferGraphics == null || ops.isEmpty()) {
+                return;
+            }
+            Rectangle canvas = new Rectangle(0, 0, bufferImage.getWidth(), bufferImage.getHeight());
+            List<Rectangle> regions = new ArrayList<>();
+            for (DrawOp op : ops) {
+                for (Rectangle reach : operationReach(op, canvas)) {
+                    reach = reach.intersection(canvas);
+                    if (!reach.isEmpty()) {
+                        addRegion(regions, reach);
+                    }
+                }
+            }
+            if (regions.isEmpty()) {
+                return;
+            }
+            for (Rectangle region : regions) {
+                ensureLoaded(region);
+            }
+            HistoryEntry before = HistoryEntry.capture(bufferImage, regions);
+            for (DrawOp op : ops) {
+                applyOperation(op, canvas);
+            }
+            partsChanged(before);
+            rebaseHistory(before);
+        }
 
-            JButton shapesButton = createShapesButton();
-            add(shapesButton);
+        /**
+         * Returns the areas an operation can change; a move can change its source and its
+         * destination.
+         */
+        private Rectangle[] operationReach(DrawOp op, Rectangle canvas) {
+            switch (op.type) {
+                case DrawOp.STROKE:
+                    BrushEngine remoteBrush = remoteBrush(op);
+                    return new Rectangle[] { strokeReach(remoteBrush, op.xs, op.ys, op.count) };
+                case DrawOp.TEXT:
+                    return new Rectangle[] { textBounds(op.text, new Font(op.fontName, op.fontStyle, op.fontSize),
+                            op.xs[0], op.ys[0]) };
+                case DrawOp.MOVE:
+                    Rectangle source = new Rectangle(op.xs[0], op.ys[0], op.xs[1], op.ys[1]);
+                    return new Rectangle[] { source,
+                            moveTarget(source, source.intersection(canvas), op.xs[2], op.ys[2]) };
+                case DrawOp.PIXELS:
+                    return new Rectangle[] { new Rectangle(op.xs[0], op.ys[0], op.xs[1], op.ys[1]) };
+                default:
+                    return new Rectangle[] { canvas };
+            }
+        }
 
-            JButton textButton = createTextButton();
-            add(textButton);
+        private BrushEngine remoteBrush(DrawOp op) {
+            BrushEngine remoteBrush = remoteBrushes.computeIfAbsent(op.peer, peer -> new BrushEngine());
+            remoteBrush.configure(op.argb, op.thickness, op.hardness, op.opacity, op.erasing,
+                    renderQuality.antialiasesCommits());
+            return remoteBrush;
+        }
 
-            JButton undoButton = createUndoButton();
-            add(undoButton);
+        private void applyOperation(DrawOp op, Rectangle canvas) {
+            switch (op.type) {
+                case DrawOp.STROKE:
+                    BrushEngine remoteBrush = remoteBrush(op);
+                    if (!op.continues) {
+                        remoteBrush.beginStroke();
+                    }
+                    for (int i = 1; i < op.count; i++) {
+                        drawSegment(remoteBrush, bufferImage, op.xs[i - 1], op.ys[i - 1], op.xs[i], op.ys[i]);
+                    }
+                    break;
+                case DrawOp.CLEAR:
+                    fillBackground();
+                    break;
+                case DrawOp.TEXT:
+                    drawText(op.text, new Font(op.fontName, op.fontStyle, op.fontSize), op.xs[0], op.ys[0],
+                            new Color(op.argb, true));
+                    break;
+                case DrawOp.MOVE:
+                    Rectangle source = new Rectangle(op.xs[0], op.ys[0], op.xs[1], op.ys[1]);
+                    Rectangle src = source.intersection(canvas);
+                    if (!src.isEmpty()) {
+                        Rectangle dst = moveTarget(source, src, op.xs[2], op.ys[2]);
+                        movePixels(src, HistoryEntry.capture(bufferImage, src).pixels, dst.x, dst.y);
+                    }
+                    break;
+                case DrawOp.PIXELS:
+                    Rectangle reach = new Rectangle(op.xs[0], op.ys[0], op.xs[1], op.ys[1]).intersection(canvas);
+                    if (reach.isEmpty()) {
+                        break;
+                    }
+                    int[] pixels = ((DataBufferInt) bufferImage.getRaster().getDataBuffer()).getData();
+                    for (int y = 0; y < reach.height; y++) {
+                        System.arraycopy(op.pixels, (reach.y - op.ys[0] + y) * op.xs[1] + reach.x - op.xs[0], pixels,
+                                (reach.y + y) * canvas.width + reach.x, reach.width);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
 
-            JButton redoButton = createRedoButton();
-            add(redoButton);
+        /**
+         * Adds a region to a list of disjoint regions, merging it with every region it overlaps
+         * or that the two together cover no more than apart, such as neighbouring pixel blocks.
+         */
+        private static void addRegion(List<Rectangle> regions, Rectangle region) {
+            Rectangle merged = new Rectangle(region);
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                for (Iterator<Rectangle> it = regions.iterator(); it.hasNext(); ) {
+                    Rectangle other = it.next();
+                    Rectangle union = merged.union(other);
+                    if (merged.intersects(other) || area(union) <= area(merged) + area(other)) {
+                        merged = union;
+                        it.remove();
+                        grown = true;
+                    }
+                }
+            }
+            regions.add(merged);
+        }
 
-            JButton vectorButton = createVectorButton();
-            add(vectorButton);
+        private static long area(Rectangle r) {
+            return (long) r.width * r.height;
+        }
 
-            playAnimationsButtonRedo = createPlayAnimationsButtonRedo();
-            add(playAnimationsButtonRedo);
+        /**
+         * Carries a change received from the session into the local undo and redo history, so
+         * that undoing a local action does not bring back pixels someone else has drawn since.
+         * before holds the changed area as it was before the remote change.
+         */
+        private void rebaseHistory(HistoryEntry before) {
+            Rectangle changed = before.getBounds();
+            for (HistoryEntry entry : undoStack) {
+                rebaseEntry(entry, before, changed);
+            }
+            for (HistoryEntry entry : redoStack) {
+                rebaseEntry(entry, before, changed);
+            }
+            if (gestureBefore != null) {
+                gestureBefore.rebase(before);
+            }
+        }
 
-            playAnimationsButtonUndo = createPlayAnimationsButtonUndo();
-            add(playAnimationsButtonUndo);
+        private void rebaseEntry(HistoryEntry entry, HistoryEntry before, Rectangle changed) {
+            if (!entry.getBounds().intersects(changed)) {
+                return;
+            }
+            if (entry.rebase(before, bufferImage) && project != null) {
+                project.historyChanged(entry);
+            }
+        }
 
-            JButton openImageButton = createOpenImageButton();
-            add(openImageButton);
+        /**
+         * Sends the pixels of a region the canvas has just changed in to the session, skipping
+         * the blocks that still match before, the region as it was before the change. before
+         * may be null, in which case every block is sent.
+         */
+        private void sendPixels(Rectangle region, HistoryEntry before) {
+            if (session != null) {
+                session.sendPixels(bufferImage, region, before);
+            }
+        }
 
-            JButton saveButton = createSaveButton();
-            add(saveButton);
+        /**
+         * Sends the regions of every part of before, the canvas as it was before a change.
+         */
+        private void sendChanges(HistoryEntry before) {
+            for (HistoryEntry part = before; part != null; part = part.next) {
+                sendPixels(part.region, before);
+            }
         }
 
-        private JButton createPenButton() {
-            JButton button = new JButton();
-            button.setPreferredSize(new Dimension(80, 60));
-            ImageIcon PenIcon = new ImageIcon("Pen.png");
-            button.setIcon(PenIcon);
-            PenButton penButton = new PenButton(drawingPanel);
-            button.addActionListener(e -> {
-                penButton.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-                penButton.setVisible(true);
-            });
-            return button;
+        /**
+         * Stamps brush dabs along a segment directly into the pixels of the target image (the
+         * canvas or the gesture overlay) and repaints only the area the dabs touched.
+         */
+        private void drawSegment(BrushEngine engine, BufferedImage target, int x0, int y0, int x1, int y1) {
+            if (target == bufferImage) {
+                ensureLoaded(segmentReach(engine, x0, y0, x1, y1));
+            }
+            int[] pixels = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+            engine.resetDirty();
+            engine.strokeTo(pixels, target.getWidth(), target.getHeight(), x0, y0, x1, y1);
+            if (!engine.hasDirty()) {
+                return;
+            }
+            Rectangle dirty = new Rectangle(engine.getDirtyX(), engine.getDirtyY(), engine.getDirtyWidth(),
+                    engine.getDirtyHeight());
+            if (target == bufferImage) {
+                markProjectDirty(dirty);
+            }
+            repaint(dirty);
         }
 
-        private JButton createClearButton() {
-            JButton button = new JButton();
-            button.setPreferredSize(new Dimension(80, 60));
-            ImageIcon ClearIcon = new ImageIcon("Clear.png");
-            button.setIcon(ClearIcon);
-            button.addActionListener(e -> drawingPanel.clearPanel());
-            return button;
+        /**
+         * Returns an area that contains every pixel the engine's dabs can touch along a segment.
+         */
+        private static Rectangle segmentReach(BrushEngine engine, int x0, int y0, int x1, int y1) {
+            Rectangle reach = new Rectangle(Math.min(x0, x1), Math.min(y0, y1), Math.abs(x1 - x0), Math.abs(y1 - y0));
+            reach.grow(engine.getSize() + 2, engine.getSize() + 2);
+            return reach;
         }
 
-        private JButton createEraserButton() {
-            JButton button = new JButton();
-            button.setPreferredSize(new Dimension(80, 60));
-            ImageIcon EraserIcon = new ImageIcon("Eraser.png");
-            button.setIcon(EraserIcon);
-            button.addActionListener(e -> toggleEraser());
-            return button;
+        private static Rectangle strokeReach(BrushEngine engine, int[] xs, int[] ys, int count) {
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE;
+            int maxY = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                minX = Math.min(minX, xs[i]);
+                minY = Math.min(minY, ys[i]);
+                maxX = Math.max(maxX, xs[i]);
+                maxY = Math.max(maxY, ys[i]);
+            }
+            return count == 0 ? new Rectangle() : segmentReach(engine, minX, minY, maxX, maxY);
         }
 
-        private void toggleEraser() {
-            drawingPanel.setEraser(!drawingPanel.isErasing);
+        /**
+         * Draws a segment of the current gesture on the overlay with an aliased brush and
+         * records it so that commitGesture can render it at full quality.
+         */
+        private void drawPreviewSegment(int x0, int y0, int x1, int y1, int size, int hardness, int opacity) {
+            if (overlayImage == null || overlayImage.getWidth() != bufferImage.getWidth()
+                    || overlayImage.getHeight() != bufferImage.getHeight()) {
+                overlayImage = new BufferedImage(bufferImage.getWidth(), bufferImage.getHeight(),
+                        BufferedImage.TYPE_INT_ARGB);
+            }
+            // The overlay cannot show erased pixels, so the eraser is previewed as background paint.
+            int previewArgb = isErasing ? ERASER_COLOR.getRGB() : currentColor.getRGB();
+            previewBrush.configure(previewArgb, size, hardness, opacity, false, false);
+            drawSegment(previewBrush, overlayImage, x0, y0, x1, y1);
+            addGestureBounds(previewBrush);
+            gestureArgb = currentColor.getRGB();
+            gestureSize = previewBrush.getSize();
+            gestureHardness = hardness;
+            gestureOpacity = previewBrush.getOpacity();
+            gestureErasing = isErasing;
+            recordGesturePoint(x1, y1);
+        }
+
+        private void addGestureBounds(BrushEngine engine) {
+            if (engine.hasDirty()) {
+                Rectangle dirty = new Rectangle(engine.getDirtyX(), engine.getDirtyY(), engine.getDirtyWidth(),
+                        engine.getDirtyHeight());
+                gestureBounds = gestureBounds == null ? dirty : gestureBounds.union(dirty);
+            }
+        }
+
+        private void recordGesturePoint(int x, int y) {
+            if (gestureCount == gestureX.length) {
+                gestureX = Arrays.copyOf(gestureX, gestureCount * 2);
+                gestureY = Arrays.copyOf(gestureY, gestureCount * 2);
+            }
+            gestureX[gestureCount] = x;
+            gestureY[gestureCount] = y;
+            gestureCount++;
+        }
+
+        /**
+         * Finishes the current stroke and records the pixels it covered, as they were before the
+         * stroke, in the undo history. A previewed stroke is first cleared from the overlay and
+         * replayed into the canvas with the antialiased brush.
+         */
+        private void commitGesture() {
+            if (gestureBounds != null && !gesturePreviewed) {
+                pushHistory(gestureBefore.toEntry(gestureBounds));
+            } else if (gestureBounds != null) {
+                ensureLoaded(gestureBounds);
+                pushHistory(HistoryEntry.capture(bufferImage, gestureBounds));
+                int[] overlay = ((DataBufferInt) overlayImage.getRaster().getDataBuffer()).getData();
+                int width = overlayImage.getWidth();
+                for (int y = gestureBounds.y; y < gestureBounds.y + gestureBounds.height; y++) {
+                    Arrays.fill(overlay, y * width + gestureBounds.x, y * width + gestureBounds.x + gestureBounds.width, 0);
+                }
+                brush.configure(gestureArgb, gestureSize, gestureHardness, gestureOpacity, gestureErasing, true);
+                brush.beginStroke();
+                for (int i = 1; i < gestureCount; i++) {
+                    drawSegment(brush, bufferImage, gestureX[i - 1], gestureY[i - 1], gestureX[i], gestureY[i]);
+                }
+                repaint(gestureBounds);
+            }
+            gestureBounds = null;
+            gestureBefore = null;
+            gestureCount = 0;
+            if (pendingThumbnailRegion != null) {
+                SwingUtilities.invokeLater(this::updateThumbnail);
+            }
+        }
+
+        /**
+         * Replaces the canvas with the given image. The canvas is always kept as TYPE_INT_ARGB
+         * so that the brush engine can write to its pixels directly.
+         */
+        public void setImage(BufferedImage image) {
+            clearSelection();
+            BufferedImage canvas = image;
+            if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+                canvas = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = canvas.createGraphics();
+                g.drawImage(image, 0, 0, null);
+                g.dispose();
+            }
+            bufferImage = canvas;
+            bufferGraphics = canvas.createGraphics();
+            renderQuality.applyHints(bufferGraphics, false);
+            if (project != null) {
+                project.close();
+            }
+            project = null;
+            runningFilter = null;
+            thumbnailRegionChanged(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+            repaint();
+        }
+
+        private void drawText(String text, Font font, int x, int y, Color textColor) {
+            bufferGraphics.setFont(font);
+            bufferGraphics.setColor(textColor);
+            bufferGraphics.drawString(text, x, y);
+        }
+
+        /**
+         * Returns the area drawText will paint for the given text, with a margin for
+         * antialiasing.
+         */
+        private Rectangle textBounds(String text, Font font, int x, int y) {
+            FontRenderContext context = bufferGraphics.getFontRenderContext();
+            Rectangle bounds = font.createGlyphVector(context, text).getPixelBounds(context, x, y);
+            bounds.grow(2, 2);
+            return bounds;
+        }
+
+        private void fillBackground() {
+            bufferGraphics.setColor(Color.WHITE);
+            bufferGraphics.fillRect(0, 0, getWidth(), getHeight());
+        }
+
+        /**
+         * Records the whole canvas in the undo history. Called before an action that may change
+         * any part of the canvas.
+         */
+        private void updateUndoRedoStack(BufferedImage image) {
+            ensureLoaded(null);
+            pushHistory(HistoryEntry.capture(image, new Rectangle(0, 0, image.getWidth(), image.getHeight())));
+        }
+
+        /**
+         * Records a region of the canvas, clipped to it, in the undo history. Called before an
+         * action that changes only that region. Returns the new entry, or null if the region
+         * lies outside the canvas.
+         */
+        private HistoryEntry recordRegion(Rectangle region) {
+            Rectangle clipped = region.intersection(new Rectangle(0, 0, bufferImage.getWidth(), bufferImage.getHeight()));
+            if (clipped.isEmpty()) {
+                return null;
+            }
+            ensureLoaded(clipped);
+            HistoryEntry before = HistoryEntry.capture(bufferImage, clipped);
+            pushHistory(before);
+            return before;
+        }
+
+        /**
+         * Pushes the pixels a new action is about to change (or has just changed, for strokes)
+         * as they were before the action. The oldest entries are dropped once the history holds
+         * more than MAX_HISTORY_DEPTH steps or MAX_HISTORY_BYTES of pixels.
+         */
+        private void pushHistory(HistoryEntry entry) {
+            undoStack.push(entry);
+            redoStack.clear();
+            while (historyStates.size() > undoStack.size()) {
+                historyStates.remove(historyStates.size() - 1);
+            }
+            historyStates.add(nextHistoryStateId++);
+            long bytes = 0;
+            for (HistoryEntry step : undoStack) {
+                bytes += step.getBytes();
+            }
+            while (undoStack.size() > 1 && (undoStack.size() > MAX_HISTORY_DEPTH || bytes > MAX_HISTORY_BYTES)) {
+                bytes -= undoStack.remove(0).getBytes();
+                historyStates.remove(0);
+            }
+            partsChanged(entry);
+        }
+
+        public void undo() {
+            recordAction("undo");
+            Rectangle changed = undoStep();
+            if (changed != null) {
+                sendChanges(redoStack.peek());
+                repaint(changed);
+            }
+        }
+
+        public void redo() {
+            recordAction("redo");
+            Rectangle changed = redoStep();
+            if (changed != null) {
+                sendChanges(undoStack.peek());
+                repaint(changed);
+            }
+        }
+
+        private Rectangle undoStep() {
+            if (undoStack.isEmpty()) {
+                return null;
+            }
+            HistoryEntry last = undoStack.pop();
+            loadParts(last);
+            redoStack.push(last.restore(bufferImage));
+            partsChanged(last);
+            return last.getBounds();
+        }
+
+        private Rectangle redoStep() {
+            if (redoStack.isEmpty()) {
+                return null;
+            }
+            HistoryEntry last = redoStack.pop();
+            loadParts(last);
+            undoStack.push(last.restore(bufferImage));
+            partsChanged(last);
+            return last.getBounds();
+        }
+
+        /**
+         * Undoes or redoes as many steps as needed to reach the given history position, then
+         * repaints once.
+         */
+        public void jumpToHistory(int position) {
+            recordAction("jump", position);
+            Rectangle changed = null;
+            while (undoStack.size() > position) {
+                changed = union(changed, undoStep());
+            }
+            while (undoStack.size() < position && !redoStack.isEmpty()) {
+                changed = union(changed, redoStep());
+            }
+            if (changed != null) {
+                sendPixels(changed, null);
+                repaint(changed);
+            }
+        }
+
+        private static Rectangle union(Rectangle a, Rectangle b) {
+            return a == null ? b : b == null ? a : a.union(b);
+        }
+
+        public int getHistoryLength() {
+            return undoStack.size() + redoStack.size() + 1;
+        }
+
+        public int getHistoryPosition() {
+            return undoStack.size();
+        }
+
+        public long getHistoryStateId(int position) {
+            return historyStates.get(position);
+        }
+
+        public HistoryThumbnails getThumbnails() {
+            return thumbnails;
+        }
+
+        public void setHistoryListener(Runnable listener) {
+            historyListener = listener;
+        }
+
+        /**
+         * Notes that a region of the canvas has changed: its project tiles need saving and its
+         * history thumbnail needs updating.
+         */
+        private void canvasChanged(Rectangle region) {
+            markProjectDirty(region);
+            thumbnailRegionChanged(region);
+        }
+
+        private void markProjectDirty(Rectangle region) {
+            if (project != null) {
+                project.markDirty(region);
+            }
+        }
+
+        /**
+         * Decodes the project tiles under the region (or the whole canvas, if it is null) that
+         * have not been decoded yet. Must be called before pixels of an opened project are read
+         * or partly overwritten.
+         */
+        void ensureLoaded(Rectangle region) {
+            if (project == null || !project.hasPendingTiles()) {
+                return;
+            }
+            Rectangle loaded;
+            try {
+                loaded = project.load(region != null ? region
+                        : new Rectangle(0, 0, bufferImage.getWidth(), bufferImage.getHeight()), bufferImage);
+            } catch (IOException ex) {
+                // Every tile was checked when the project was opened, so the file has changed since.
+                throw new UncheckedIOException(ex);
+            }
+            if (loaded != null) {
+                thumbnailRegionChanged(loaded);
+            }
+        }
+
+        /**
+         * Returns the canvas with all of its pixels loaded.
+         */
+        public BufferedImage getImage() {
+            ensureLoaded(null);
+            return bufferImage;
+        }
+
+        public File getProjectFile() {
+            return project == null ? null : project.getFile();
+        }
+
+        /**
+         * Opens a project file. Only the header, the tile index and the undo history are read
+         * here, and the tiles are checked against their checksums, so that a damaged file fails
+         * here; tiles are decoded as they are painted or edited.
+         */
+        public void openProject(File file) throws IOException {
+            recordAction("project", file.getPath());
+            ProjectFile opened = ProjectFile.open(file);
+            List<HistoryEntry> undo = new ArrayList<>();
+            List<HistoryEntry> redo = new ArrayList<>();
+            try {
+                opened.readHistory(undo, redo);
+            } catch (IOException ex) {
+                opened.close();
+                throw ex;
+            }
+            setImage(new BufferedImage(opened.getWidth(), opened.getHeight(), BufferedImage.TYPE_INT_ARGB));
+            project = opened;
+            undoStack.clear();
+            undoStack.addAll(undo);
+            redoStack.clear();
+            redoStack.addAll(redo);
+            historyStates.clear();
+            for (int i = 0; i < getHistoryLength(); i++) {
+                historyStates.add(nextHistoryStateId++);
+            }
+            if (historyListener != null) {
+                historyListener.run();
+            }
+        }
+
+        /**
+         * Replaces the canvas with an image file. Returns false if the file is not an image
+         * that can be read.
+         */
+        public boolean openImage(File file) throws IOException {
+            recordAction("image", file.getPath());
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                return false;
+            }
+            setImage(image);
+            return true;
+        }
+
+        /**
+         * Saves the canvas as a project. Saving again to the file the canvas came from appends
+         * only the tiles that changed since; any other file, or one with too much abandoned
+         * space, is written in full.
+         */
+        public void saveProject(File file, boolean includeHistory) throws IOException {
+            if (project != null && project.getFile().equals(file) && !project.needsCompaction()) {
+                project.save(bufferImage, undoStack, redoStack, includeHistory);
+            } else {
+                ensureLoaded(null);
+                if (project != null) {
+                    project.close();
+                }
+                project = ProjectFile.write(file, bufferImage, undoStack, redoStack, includeHistory);
+            }
+        }
+
+        /**
+         * Schedules the thumbnail of the current history state to be brought up to date for the
+         * given canvas region. The region is handed to the thumbnail thread in a later event so
+         * that mouseReleased and undo return first; regions changed before then are merged.
+         */
+        private void thumbnailRegionChanged(Rectangle region) {
+            if (pendingThumbnailRegion == null) {
+                pendingThumbnailRegion = new Rectangle(region);
+                SwingUtilities.invokeLater(this::updateThumbnail);
+            } else {
+                pendingThumbnailRegion.add(region);
+            }
+            if (historyListener != null) {
+                historyListener.run();
+            }
+        }
+
+        /**
+         * Copies the pending region of the canvas and hands the copy to the thumbnail thread,
+         * so that the canvas is only ever read on the event dispatch thread. While a stroke is
+         * being drawn straight into the canvas the region is kept until the stroke is committed.
+         */
+        private void updateThumbnail() {
+            if (gestureBefore != null) {
+                return;
+            }
+            Rectangle region = pendingThumbnailRegion;
+            pendingThumbnailRegion = null;
+            if (bufferImage == null || region == null) {
+                return;
+            }
+            Rectangle aligned = thumbnails.alignToCells(region, bufferImage.getWidth(), bufferImage.getHeight());
+            if (aligned.isEmpty()) {
+                return;
+            }
+            thumbnails.update(historyStates.get(undoStack.size()), HistoryEntry.capture(bufferImage, aligned).pixels,
+                    aligned, bufferImage.getWidth(), bufferImage.getHeight());
+        }
+
+        private BufferedImage copyImage(BufferedImage source) {
+            if (source == null)
+                return null;
+
+            BufferedImage copy = new BufferedImage(source.getWidth(), source.getHeight(), source.getType());
+            Graphics2D g = copy.createGraphics();
+            g.drawImage(source, 0, 0, null);
+            g.dispose();
+            return copy;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (bufferImage == null) {
+                int width = getWidth();
+                int height = getHeight();
+                bufferImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                bufferGraphics = bufferImage.createGraphics();
+                renderQuality.applyHints(bufferGraphics, false);
+                bufferGraphics.setColor(Color.WHITE);
+                bufferGraphics.fillRect(0, 0, width, height);
+                thumbnailRegionChanged(new Rectangle(0, 0, width, height));
+            }
+            ensureLoaded(g.getClipBounds());
+            renderQuality.applyHints((Graphics2D) g, isDrawing || animating);
+            g.drawImage(bufferImage, 0, 0, this);
+            if (gestureBounds != null && gesturePreviewed) {
+                g.drawImage(overlayImage, 0, 0, this);
+            }
+            BufferedImage layer = importLayer;
+            if (layer != null) {
+                g.drawImage(layer, 0, 0, this);
+            }
+            if (runningFilter != null) {
+                Rectangle region = runningFilter.getRegion();
+                g.drawImage(runningFilter.getOutput(), region.x, region.y, this);
+            }
+            paintSelection((Graphics2D) g);
+        }
+
+        /**
+         * Draws the selection outline and, while a move is in progress, the moved pixels on top of
+         * the canvas. The canvas itself is not modified until the move is released.
+         */
+        private void paintSelection(Graphics2D g) {
+            if (selectionBounds == null) {
+                return;
+            }
+            if (moveStart != null) {
+                g.setColor(Color.WHITE);
+                g.fillRect(selectionSource.x, selectionSource.y, selectionSource.width, selectionSource.height);
+                g.drawImage(selectionImage, selectionBounds.x, selectionBounds.y, this);
+            }
+            Stroke stroke = g.getStroke();
+            g.setColor(Color.DARK_GRAY);
+            g.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[] { 4, 4 }, 0));
+            g.drawRect(selectionBounds.x, selectionBounds.y, selectionBounds.width, selectionBounds.height);
+            g.setStroke(stroke);
+        }
+
+        public void drawVector(int x, int y) {
+            if (bufferGraphics != null) {
+                recordAction("vector", x, y);
+                Rectangle line = new Rectangle(0, 0, 0, 0);
+                line.add(x, y);
+                line.grow(currentThickness + 2, currentThickness + 2);
+                line = line.intersection(new Rectangle(0, 0, bufferImage.getWidth(), bufferImage.getHeight()));
+                if (line.isEmpty()) {
+                    return;
+                }
+                ensureLoaded(line);
+                HistoryEntry before = HistoryEntry.capture(bufferImage, line);
+                pushHistory(before);
+                bufferGraphics.setColor(currentColor);
+                bufferGraphics.setStroke(new BasicStroke(currentThickness));
+                bufferGraphics.drawLine(0, 0, x, y);
+                sendPixels(line, before);
+                repaint(line);
+            }
+        }
+
+        /**
+         * Draws one of the ShapesButton shapes (Line, Circle, Rectangle or Polygon) centered on
+         * the given point, optionally rotated by the given angle in degrees and flipped about its
+         * center.
+         */
+        public void drawShape(String shape, int size, int vertices, boolean fill, int flip, double rotation,
+                Color color, int thickness, int centerX, int centerY) {
+            if (bufferGraphics == null) {
+                return;
+            }
+            recordAction("shape", shape, size, vertices, fill, flip, rotation, color.getRGB(), thickness, centerX,
+                    centerY);
+
+            AffineTransform transform = new AffineTransform();
+            if (rotation != 0) {
+                transform.translate(centerX, centerY);
+                transform.rotate(Math.toRadians(rotation));
+                transform.translate(-centerX, -centerY);
+            }
+
+            if (flip != FLIP_NONE) {
+                transform.translate(centerX, centerY);
+                if (flip == FLIP_HORIZONTAL) {
+                    transform.scale(-1, 1);
+                } else {
+                    transform.scale(1, -1);
+                }
+                transform.translate(-centerX, -centerY);
+            }
+
+            Shape outline;
+            if (shape.equals("Line")) {
+                int x1 = centerX - size * 5;
+                int y1 = centerY - size * 5;
+                int x2 = centerX + size * 5;
+                int y2 = centerY + size * 5;
+                outline = new Line2D.Double(x1, y1, x2, y2);
+                fill = false;
+            } else if (shape.equals("Circle")) {
+                int circleSize = size * 10;
+                int x = centerX - circleSize / 2;
+                int y = centerY - circleSize / 2;
+                outline = new Ellipse2D.Double(x, y, circleSize, circleSize);
+            } else if (shape.equals("Rectangle")) {
+                int rectangleWidth = size * 20;
+                int rectangleHeight = size * 10;
+                int x = centerX - rectangleWidth / 2;
+                int y = centerY - rectangleHeight / 2;
+                outline = new Rectangle(x, y, rectangleWidth, rectangleHeight);
+            } else if (shape.equals("Polygon")) {
+                int radius = size * 5;
+                int[] xPoints = new int[vertices];
+                int[] yPoints = new int[vertices];
+                for (int i = 0; i < vertices; i++) {
+                    double angle = 2 * Math.PI * i / vertices;
+                    xPoints[i] = (int) (centerX + radius * Math.cos(angle));
+                    yPoints[i] = (int) (centerY + radius * Math.sin(angle));
+                }
+                outline = new Polygon(xPoints, yPoints, vertices);
+            } else {
+                return;
+            }
+
+            BasicStroke stroke = new BasicStroke(thickness);
+            Rectangle bounds = transform.createTransformedShape(fill ? outline : stroke.createStrokedShape(outline))
+                    .getBounds();
+            bounds.grow(2, 2);
+            HistoryEntry before = recordRegion(bounds);
+            if (before == null) {
+                return;
+            }
+
+            AffineTransform originalTransform = bufferGraphics.getTransform();
+            bufferGraphics.transform(transform);
+            bufferGraphics.setColor(color);
+            bufferGraphics.setStroke(stroke);
+            if (fill) {
+                bufferGraphics.fill(outline);
+            } else {
+                bufferGraphics.draw(outline);
+            }
+            bufferGraphics.setTransform(originalTransform);
+
+            sendChanges(before);
+            repaint(before.region);
+        }
+
+        /**
+         * Imports an SVG file on a background thread. The document is rasterized into a
+         * transparent layer that is shown above the canvas as batches complete, then merged into
+         * the canvas as a single undoable change.
+         */
+        public void importSvg(File file) {
+            if (bufferImage == null || importLayer != null) {
+                return;
+            }
+            recordAction("svg", file.getPath());
+            BufferedImage layer = new BufferedImage(bufferImage.getWidth(), bufferImage.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB);
+            boolean antialiased = renderQuality.antialiasesCommits();
+            importLayer = layer;
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+            Thread worker = new Thread(() -> {
+                Exception failure = null;
+                SvgImporter importer = new SvgImporter(layer, antialiased);
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    importer.importFrom(in, this::repaint);
+                } catch (IOException | XMLStreamException | RuntimeException ex) {
+                    failure = ex;
+                }
+                Exception error = failure;
+                EventQueue.invokeLater(() -> {
+                    importLayer = null;
+                    setCursor(Cursor.getDefaultCursor());
+                    if (error != null) {
+                        error.printStackTrace();
+                        repaint();
+                        JOptionPane.showMessageDialog(this, "Unable to import the selected SVG file.", "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    } else {
+                        mergeLayer(layer, importer.getDrawnTiles());
+                    }
+                });
+            }, "svg-import");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        /**
+         * Returns true while an SVG import started by importSvg has not been merged yet.
+         */
+        boolean isImporting() {
+            return importLayer != null;
+        }
+
+        /**
+         * Applies a filter to the selection, or to the whole canvas if nothing is selected, on a
+         * background thread. Filtered tiles are shown as they finish; when all are done they
+         * replace the region in the canvas as a single undoable change and the callback is run
+         * on the event dispatch thread. If the canvas is replaced in the meantime, the result
+         * is discarded. Returns false if another filter is still running.
+         */
+        public boolean applyFilter(ImageFilter filter, Consumer<FilterPipeline> done) {
+            FilterPipeline pipeline = startFilter(filter);
+            if (pipeline == null) {
+                return false;
+            }
+            Thread worker = new Thread(() -> {
+                pipeline.run(tile -> repaint(tile));
+                EventQueue.invokeLater(() -> {
+                    commitFilter(pipeline);
+                    if (done != null) {
+                        done.accept(pipeline);
+                    }
+                });
+            }, "canvas-filter");
+            worker.setDaemon(true);
+            worker.start();
+            return true;
+        }
+
+        /**
+         * Applies a filter like applyFilter but returns only once it has been committed.
+         */
+        FilterPipeline applyFilterAndWait(ImageFilter filter) {
+            FilterPipeline pipeline = startFilter(filter);
+            if (pipeline != null) {
+                pipeline.run(null);
+                commitFilter(pipeline);
+            }
+            return pipeline;
+        }
+
+        private FilterPipeline startFilter(ImageFilter filter) {
+            if (bufferImage == null || runningFilter != null) {
+                return null;
+            }
+            Rectangle canvas = new Rectangle(0, 0, bufferImage.getWidth(), bufferImage.getHeight());
+            Rectangle region = selectionSource != null && moveStart == null ? selectionSource.intersection(canvas)
+                    : canvas;
+            if (region.isEmpty()) {
+                return null;
+            }
+            List<Object> args = new ArrayList<>();
+            args.add(filter.getName());
+            args.addAll(Arrays.asList(filter.getParameters()));
+            recordAction("filter", args.toArray());
+            Rectangle reach = new Rectangle(region);
+            reach.grow(filter.getHalo(), filter.getHalo());
+            ensureLoaded(reach);
+            runningFilter = new FilterPipeline(filter, bufferImage, region);
+            return runningFilter;
+        }
+
+        private void commitFilter(FilterPipeline pipeline) {
+            if (runningFilter != pipeline) {
+                // The canvas was replaced while the filter ran, so its result no longer applies.
+                return;
+            }
+            runningFilter = null;
+            Rectangle region = pipeline.getRegion();
+            HistoryEntry before = HistoryEntry.capture(bufferImage, region);
+            pushHistory(before);
+            Graphics2D g = bufferImage.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(pipeline.getOutput(), region.x, region.y, null);
+            g.dispose();
+            sendPixels(region, before);
+            repaint(region);
+        }
+
+        /**
+         * Draws the given regions of a transparent layer onto the canvas, recording them for
+         * undo as the parts of one step.
+         */
+        void mergeLayer(BufferedImage layer, List<Rectangle> regions) {
+            if (regions.isEmpty()) {
+                return;
+            }
+            for (Rectangle region : regions) {
+                ensureLoaded(region);
+            }
+            HistoryEntry before = HistoryEntry.capture(bufferImage, regions);
+            pushHistory(before);
+            for (HistoryEntry part = before; part != null; part = part.next) {
+                Rectangle r = part.region;
+                bufferGraphics.drawImage(layer, r.x, r.y, r.x + r.width, r.y + r.height, r.x, r.y, r.x + r.width,
+                        r.y + r.height, null);
+                repaint(r);
+            }
+            sendChanges(before);
+        }
+
+        /**
+         * Starts recording the mouse events that reach this panel and the actions performed on
+         * it to the given recorder, after the canvas size and tool settings they start from.
+         */
+        public void startTraceRecording(InputTraceRecorder recorder) {
+            stopTraceRecording();
+            recorder.state(bufferImage != null ? bufferImage.getWidth() : getWidth(),
+                    bufferImage != null ? bufferImage.getHeight() : getHeight(), renderQuality, currentColor.getRGB(),
+                    currentThickness, currentHardness, currentOpacity, isErasing, isSelecting);
+            traceRecorder = recorder;
+            addMouseListener(recorder);
+            addMouseMotionListener(recorder);
+        }
+
+        public void stopTraceRecording() {
+            if (traceRecorder != null) {
+                removeMouseListener(traceRecorder);
+                removeMouseMotionListener(traceRecorder);
+                traceRecorder.close();
+                traceRecorder = null;
+            }
+        }
+
+        public boolean isRecordingTrace() {
+            return traceRecorder != null;
+        }
+
+        void recordAction(String name, Object... args) {
+            if (traceRecorder != null) {
+                traceRecorder.action(name, args);
+            }
+        }
+
+    }
+
+    /**
+     * The InputTraceRecorder class writes a session to a trace file that TraceReplay can play
+     * back: the mouse events reaching the DrawingPanel and the actions performed through its
+     * dialogs and buttons. Each line is one event:
+     *
+     * S time width height quality color thickness hardness opacity eraser select
+     *                            the canvas size and tool settings when recording started
+     * P|D|R time x y modifiers   mouse pressed, dragged or released
+     * A time name args...        an action such as undo, text or shape, with URL-encoded args
+     *
+     * Times are milliseconds since recording started. The state line comes first; the pixels
+     * of the canvas are not recorded, so a trace replays over a blank canvas unless it starts
+     * by opening an image or project.
+     */
+static class InputTraceRecorder extends MouseAdapter implements Closeable {
+        static final String HEADER = "# canvas input trace v1";
+
+        private final BufferedWriter writer;
+        private final long start = System.nanoTime();
+
+        public InputTraceRecorder(Writer out) throws IOException {
+            writer = new BufferedWriter(out);
+            writer.write(HEADER);
+            writer.newLine();
+        }
+
+        @Override
+        public void mousePressed(MouseEvent e) {
+            mouse("P", e);
+        }
+
+        @Override
+        public void mouseDragged(MouseEvent e) {
+            mouse("D", e);
+        }
+
+        @Override
+        public void mouseReleased(MouseEvent e) {
+            mouse("R", e);
+        }
+
+        private void mouse(String type, MouseEvent e) {
+            write(type + " " + elapsedMillis() + " " + e.getX() + " " + e.getY() + " " + e.getModifiersEx());
+        }
+
+        /**
+         * Records the canvas size and tool settings that the following events start from.
+         */
+        void state(int width, int height, RenderQuality quality, int argb, int thickness, int hardness, int opacity,
+                boolean erasing, boolean selecting) {
+            write("S " + elapsedMillis() + " " + width + " " + height + " " + quality.name() + " " + argb + " "
+                    + thickness + " " + hardness + " " + opacity + " " + erasing + " " + selecting);
+        }
+
+        void action(String name, Object... args) {
+            StringBuilder line = new StringBuilder("A ").append(elapsedMillis()).append(' ').append(name);
+            for (Object arg : args) {
+                line.append(' ').append(encode(String.valueOf(arg)));
+            }
+            write(line.toString());
+        }
+
+        private long elapsedMillis() {
+            return (System.nanoTime() - start) / 1000000;
+        }
+
+        private void write(String line) {
+            try {
+                writer.write(line);
+                writer.newLine();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        static String encode(String value) {
+            try {
+                return URLEncoder.encode(value, "UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        static String decode(String value) {
+            try {
+                return URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    /**
+     * The TraceReplay class replays a recorded input trace against a headless DrawingPanel and
+     * reports per-event processing time percentiles, the memory allocated during the replay and
+     * a hash of the resulting canvas pixels. Each event is timed from dispatch until the events
+     * it queued on the event dispatch thread have run.
+     *
+     * Run it with: java Canvas$TraceReplay trace-file [--width W] [--height H]
+     * [--max-p99-ms N] [--max-alloc-mb N] [--expect-hash HEX]
+     *
+     * The canvas size and tool settings come from the trace's state line; --width and --height
+     * override the size, and traces without a state line replay on a 1680 x 860 canvas.
+     *
+     * The process exits with status 1 when a budget is exceeded or the pixel hash differs.
+     */
+static class TraceReplay {
+        static final int DEFAULT_WIDTH = 1680;
+        static final int DEFAULT_HEIGHT = 860;
+
+        public static void main(String[] args) throws Exception {
+            System.setProperty("java.awt.headless", "true");
+            if (args.length == 0) {
+                System.err.println("Usage: java Canvas$TraceReplay trace-file [--width W] [--height H] "
+                        + "[--max-p99-ms N] [--max-alloc-mb N] [--expect-hash HEX]");
+                System.exit(2);
+            }
+            int width = 0;
+            int height = 0;
+            double maxP99Millis = -1;
+            double maxAllocMegabytes = -1;
+            String expectedHash = null;
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "--width":
+                        width = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--height":
+                        height = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--max-p99-ms":
+                        maxP99Millis = Double.parseDouble(args[i + 1]);
+                        break;
+                    case "--max-alloc-mb":
+                        maxAllocMegabytes = Double.parseDouble(args[i + 1]);
+                        break;
+                    case "--expect-hash":
+                        expectedHash = args[i + 1];
+                        break;
+                    default:
+                        System.err.println("Unknown option " + args[i]);
+                        System.exit(2);
+                }
+            }
+
+            List<String> lines = Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8);
+            Result result = replay(lines, width, height);
+
+            System.out.printf("events:      %d (%d mouse, %d actions)%n", result.mouseTimes.length
+                    + result.actionTimes.length, result.mouseTimes.length, result.actionTimes.length);
+            printPercentiles("mouse", result.mouseTimes);
+            printPercentiles("actions", result.actionTimes);
+            printPercentiles("all", result.allTimes);
+            System.out.printf("allocated:   %s%n", result.allocatedBytes < 0 ? "unavailable"
+                    : String.format("%.1f MB", result.allocatedBytes / 1048576.0));
+            System.out.printf("pixel hash:  %s%n", result.pixelHash);
+
+            boolean failed = false;
+            double p99 = percentile(result.allTimes, 0.99) / 1e6;
+            if (maxP99Millis >= 0 && p99 > maxP99Millis) {
+                System.out.printf("FAIL: p99 %.3f ms exceeds budget of %.3f ms%n", p99, maxP99Millis);
+                failed = true;
+            }
+            if (maxAllocMegabytes >= 0 && result.allocatedBytes / 1048576.0 > maxAllocMegabytes) {
+                System.out.printf("FAIL: allocated %.1f MB exceeds budget of %.1f MB%n",
+                        result.allocatedBytes / 1048576.0, maxAllocMegabytes);
+                failed = true;
+            }
+            if (expectedHash != null && !expectedHash.equalsIgnoreCase(result.pixelHash)) {
+                System.out.printf("FAIL: pixel hash %s does not match expected %s%n", result.pixelHash, expectedHash);
+                failed = true;
+            }
+            System.exit(failed ? 1 : 0);
+        }
+
+        static class Result {
+            long[] mouseTimes;
+            long[] actionTimes;
+            long[] allTimes;
+            long allocatedBytes;
+            String pixelHash;
+        }
+
+        /**
+         * Replays the trace lines against a new DrawingPanel with a blank canvas, set up as the
+         * trace's state line describes. A width or height above zero overrides the recorded one.
+         */
+        static Result replay(List<String> lines, int width, int height) throws Exception {
+            String[] state = null;
+            for (String line : lines) {
+                if (line.startsWith("S ")) {
+                    state = line.split(" ");
+                    break;
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    break;
+                }
+            }
+            int canvasWidth = width > 0 ? width : state != null ? Integer.parseInt(state[2]) : DEFAULT_WIDTH;
+            int canvasHeight = height > 0 ? height : state != null ? Integer.parseInt(state[3]) : DEFAULT_HEIGHT;
+            String[] initial = state;
+            DrawingPanel[] panel = new DrawingPanel[1];
+            EventQueue.invokeAndWait(() -> {
+                panel[0] = new DrawingPanel();
+                panel[0].setSize(canvasWidth, canvasHeight);
+                BufferedImage blank = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = blank.createGraphics();
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, canvasWidth, canvasHeight);
+                g.dispose();
+                panel[0].setImage(blank);
+                if (initial != null) {
+                    applyState(panel[0], initial);
+                }
+            });
+            drain();
+
+            long[] mouseTimes = new long[lines.size()];
+            long[] actionTimes = new long[lines.size()];
+            int mouseCount = 0;
+            int actionCount = 0;
+            AllocationCounter allocations = new AllocationCounter();
+            for (String line : lines) {
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("S ")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                boolean isAction = fields[0].equals("A");
+                long start = System.nanoTime();
+                EventQueue.invokeAndWait(() -> dispatch(panel[0], fields));
+                drain();
+                while (panel[0].isImporting()) {
+                    Thread.sleep(1);
+                }
+                drain();
+                long elapsed = System.nanoTime() - start;
+                allocations.sample();
+                if (isAction) {
+                    actionTimes[actionCount++] = elapsed;
+                } else {
+                    mouseTimes[mouseCount++] = elapsed;
+                }
+            }
+
+            Result result = new Result();
+            result.mouseTimes = Arrays.copyOf(mouseTimes, mouseCount);
+            result.actionTimes = Arrays.copyOf(actionTimes, actionCount);
+            result.allTimes = new long[mouseCount + actionCount];
+            System.arraycopy(mouseTimes, 0, result.allTimes, 0, mouseCount);
+            System.arraycopy(actionTimes, 0, result.allTimes, mouseCount, actionCount);
+            result.allocatedBytes = allocations.total();
+            BufferedImage[] image = new BufferedImage[1];
+            EventQueue.invokeAndWait(() -> image[0] = panel[0].getImage());
+            result.pixelHash = pixelHash(image[0]);
+            return result;
+        }
+
+        private static void applyState(DrawingPanel panel, String[] fields) {
+            panel.setRenderQuality(RenderQuality.valueOf(fields[4]));
+            panel.setCurrentColor(new Color(Integer.parseInt(fields[5]), true));
+            panel.setCurrentThickness(Integer.parseInt(fields[6]));
+            panel.setBrushSettings(Integer.parseInt(fields[7]), Integer.parseInt(fields[8]));
+            panel.setEraser(Boolean.parseBoolean(fields[9]));
+            panel.setSelecting(Boolean.parseBoolean(fields[10]));
+        }
+
+        private static void drain() throws Exception {
+            EventQueue.invokeAndWait(() -> {
+            });
+        }
+
+        private static void dispatch(DrawingPanel panel, String[] fields) {
+            switch (fields[0]) {
+                case "P":
+                case "D":
+                case "R":
+                    dispatchMouse(panel, fields);
+                    break;
+                case "A":
+                    dispatchAction(panel, fields);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown trace event " + fields[0]);
+            }
+        }
+
+        private static void dispatchMouse(DrawingPanel panel, String[] fields) {
+            int x = Integer.parseInt(fields[2]);
+            int y = Integer.parseInt(fields[3]);
+            int modifiers = Integer.parseInt(fields[4]);
+            int id = fields[0].equals("P") ? MouseEvent.MOUSE_PRESSED
+                    : fields[0].equals("D") ? MouseEvent.MOUSE_DRAGGED : MouseEvent.MOUSE_RELEASED;
+            MouseEvent e = new MouseEvent(panel, id, System.currentTimeMillis(), modifiers, x, y, 1, false,
+                    MouseEvent.BUTTON1);
+            if (id == MouseEvent.MOUSE_DRAGGED) {
+                for (MouseMotionListener listener : panel.getMouseMotionListeners()) {
+                    listener.mouseDragged(e);
+                }
+            } else {
+                for (MouseListener listener : panel.getMouseListeners()) {
+                    if (id == MouseEvent.MOUSE_PRESSED) {
+                        listener.mousePressed(e);
+                    } else {
+                        listener.mouseReleased(e);
+                    }
+                }
+            }
+        }
+
+        private static void dispatchAction(DrawingPanel panel, String[] fields) {
+            String[] args = new String[fields.length - 3];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = InputTraceRecorder.decode(fields[i + 3]);
+            }
+            switch (fields[2]) {
+                case "undo":
+                    panel.undo();
+                    break;
+                case "redo":
+                    panel.redo();
+                    break;
+                case "jump":
+                    panel.jumpToHistory(Integer.parseInt(args[0]));
+                    break;
+                case "clear":
+                    panel.clearPanel();
+                    break;
+                case "deselect":
+                    panel.clearSelection();
+                    break;
+                case "eraser":
+                    panel.setEraser(Boolean.parseBoolean(args[0]));
+                    break;
+                case "select":
+                    panel.setSelecting(Boolean.parseBoolean(args[0]));
+                    break;
+                case "quality":
+                    panel.setRenderQuality(RenderQuality.valueOf(args[0]));
+                    break;
+                case "pen":
+                    panel.setPenSettings(new Color(Integer.parseInt(args[0]), true), Integer.parseInt(args[1]));
+                    break;
+                case "brush":
+                    panel.setBrushSettings(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+                    break;
+                case "vector":
+                    panel.drawVector(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+                    break;
+                case "text":
+                    panel.addText(args[0], new Font(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3])),
+                            new Point(Integer.parseInt(args[4]), Integer.parseInt(args[5])),
+                            new Color(Integer.parseInt(args[6]), true));
+                    break;
+                case "shape":
+                    panel.drawShape(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                            Boolean.parseBoolean(args[3]), Integer.parseInt(args[4]), Double.parseDouble(args[5]),
+                            new Color(Integer.parseInt(args[6]), true), Integer.parseInt(args[7]),
+                            Integer.parseInt(args[8]), Integer.parseInt(args[9]));
+                    break;
+                case "svg":
+                    // Runs in the background like an import from the menu; replay waits for it.
+                    panel.importSvg(new File(args[0]));
+                    break;
+                case "filter":
+                    panel.applyFilterAndWait(ImageFilter.create(args[0], Arrays.copyOfRange(args, 1, args.length)));
+                    break;
+                case "image":
+                    try {
+                        if (!panel.openImage(new File(args[0]))) {
+                            throw new IOException("Unable to read " + args[0]);
+                        }
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    break;
+                case "project":
+                    try {
+                        panel.openProject(new File(args[0]));
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    break;
+                case "save":
+                    try {
+                        ImageIO.write(panel.getImage(), "png", new ByteArrayOutputStream());
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    break;
+                default:
+                    System.err.println("Skipping unknown action " + fields[2]);
+                    break;
+            }
+        }
+
+        /**
+         * Counts the bytes allocated by every thread, the event dispatch thread as well as import
+         * and filter workers, from its creation. The JVM only reports threads that are still
+         * alive, so threads are sampled after every event and each keeps the last count seen for
+         * it; a worker that finishes within an event is counted up to the previous sample.
+         * Where the JVM keeps a total that includes finished threads (Java 14 and later), that
+         * total is used instead.
+         */
+        static class AllocationCounter {
+            private final com.sun.management.ThreadMXBean threads;
+            private final Method totalMethod;
+            private final Map<Long, Long> baseline = new HashMap<>();
+            private final Map<Long, Long> latest = new HashMap<>();
+            private long totalBefore;
+
+            AllocationCounter() {
+                java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                threads = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean
+                        : null;
+                Method method = null;
+                try {
+                    method = com.sun.management.ThreadMXBean.class.getMethod("getTotalThreadAllocatedBytes");
+                } catch (NoSuchMethodException ex) {
+                    // Older JVMs only report live threads; sampling covers them.
+                }
+                totalMethod = method;
+                totalBefore = runningTotal();
+                if (totalBefore < 0) {
+                    read(baseline);
+                }
+            }
+
+            void sample() {
+                if (totalBefore < 0) {
+                    read(latest);
+                }
+            }
+
+            /**
+             * Returns the bytes allocated since this counter was created, or -1 if the JVM
+             * cannot tell.
+             */
+            long total() {
+                if (threads == null) {
+                    return -1;
+                }
+                if (totalBefore >= 0) {
+                    return runningTotal() - totalBefore;
+                }
+                sample();
+                long total = 0;
+                for (Map.Entry<Long, Long> entry : latest.entrySet()) {
+                    Long before = baseline.get(entry.getKey());
+                    total += entry.getValue() - (before != null ? before : 0);
+                }
+                return total;
+            }
+
+            private long runningTotal() {
+                if (threads == null || totalMethod == null) {
+                    return -1;
+                }
+                try {
+                    return (Long) totalMethod.invoke(threads);
+                } catch (ReflectiveOperationException | RuntimeException ex) {
+                    return -1;
+                }
+            }
+
+            private void read(Map<Long, Long> counts) {
+                if (threads == null) {
+                    return;
+                }
+                long[] ids = threads.getAllThreadIds();
+                long[] bytes = threads.getThreadAllocatedBytes(ids);
+                for (int i = 0; i < ids.length; i++) {
+                    if (bytes[i] > 0) {
+                        counts.put(ids[i], bytes[i]);
+                    }
+                }
+            }
+        }
+
+        static String pixelHash(BufferedImage image) throws NoSuchAlgorithmException {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            ByteBuffer bytes = ByteBuffer.allocate(8 + pixels.length * 4);
+            bytes.putInt(image.getWidth()).putInt(image.getHeight());
+            bytes.asIntBuffer().put(pixels);
+            digest.update(bytes.array());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+
+        private static long percentile(long[] times, double fraction) {
+            if (times.length == 0) {
+                return 0;
+            }
+            long[] sorted = times.clone();
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        private static void printPercentiles(String label, long[] times) {
+            System.out.printf("%-12s p50 %8.3f ms  p90 %8.3f ms  p99 %8.3f ms  max %8.3f ms%n", label + ":",
+                    percentile(times, 0.5) / 1e6, percentile(times, 0.9) / 1e6, percentile(times, 0.99) / 1e6,
+                    percentile(times, 1.0) / 1e6);
+        }
+    }
+
+    /**
+     * The SvgImporter class rasterizes an SVG document into an image without building a DOM.
+     * Elements are read one at a time with a streaming XML reader and turned into the same Java2D
+     * primitives the DrawingPanel and ShapesButton draw with (lines, ellipses, rectangles,
+     * polygons, general paths and text). Primitives are collected in fixed-size batches; each
+     * batch is binned into square tiles and the tiles are drawn in parallel on a thread pool while
+     * the next batch is parsed. Memory therefore depends on the batch size rather than on the size
+     * of the document, and batches are drawn in document order so later elements still paint over
+     * earlier ones.
+     *
+     * Supported: svg (width, height, viewBox), g, path, line, rect, circle, ellipse, polygon,
+     * polyline and text with fill, stroke, stroke-width, opacity, fill-rule, font-size,
+     * font-family and transform, given either as attributes or in a style attribute. Content of
+     * defs, symbol, clipPath, mask, pattern, marker and style elements is skipped.
+     */
+static class SvgImporter {
+        static final int TILE_SIZE = 256;
+        static final int BATCH_SIZE = 4096;
+
+        private static final Map<String, Color> NAMED_COLORS = new HashMap<>();
+        static {
+            NAMED_COLORS.put("black", Color.BLACK);
+            NAMED_COLORS.put("white", Color.WHITE);
+            NAMED_COLORS.put("red", Color.RED);
+            NAMED_COLORS.put("green", new Color(0, 128, 0));
+            NAMED_COLORS.put("lime", Color.GREEN);
+            NAMED_COLORS.put("blue", Color.BLUE);
+            NAMED_COLORS.put("navy", new Color(0, 0, 128));
+            NAMED_COLORS.put("yellow", Color.YELLOW);
+            NAMED_COLORS.put("orange", new Color(255, 165, 0));
+            NAMED_COLORS.put("purple", new Color(128, 0, 128));
+            NAMED_COLORS.put("magenta", Color.MAGENTA);
+            NAMED_COLORS.put("fuchsia", Color.MAGENTA);
+            NAMED_COLORS.put("cyan", Color.CYAN);
+            NAMED_COLORS.put("aqua", Color.CYAN);
+            NAMED_COLORS.put("gray", Color.GRAY);
+            NAMED_COLORS.put("grey", Color.GRAY);
+            NAMED_COLORS.put("silver", Color.LIGHT_GRAY);
+            NAMED_COLORS.put("lightgray", Color.LIGHT_GRAY);
+            NAMED_COLORS.put("darkgray", Color.DARK_GRAY);
+            NAMED_COLORS.put("brown", new Color(165, 42, 42));
+            NAMED_COLORS.put("pink", Color.PINK);
+            NAMED_COLORS.put("maroon", new Color(128, 0, 0));
+            NAMED_COLORS.put("olive", new Color(128, 128, 0));
+            NAMED_COLORS.put("teal", new Color(0, 128, 128));
+        }
+
+        private final BufferedImage target;
+        private final boolean antialiased;
+        private final int parallelism;
+        private int primitiveCount;
+        // The tiles any primitive was drawn into, in row-major order.
+        private final BitSet drawnTiles = new BitSet();
+
+        public SvgImporter(BufferedImage target, boolean antialiased) {
+            this(target, antialiased, Runtime.getRuntime().availableProcessors());
+        }
+
+        public SvgImporter(BufferedImage target, boolean antialiased, int parallelism) {
+            this.target = target;
+            this.antialiased = antialiased;
+            this.parallelism = Math.max(1, parallelism);
+        }
+
+        public int getPrimitiveCount() {
+            return primitiveCount;
+        }
+
+        /**
+         * Returns the areas of the target that were drawn into, as runs of adjacent tiles within
+         * each row of tiles. Only valid once importFrom has returned.
+         */
+        public List<Rectangle> getDrawnTiles() {
+            int columns = (target.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+            List<Rectangle> regions = new ArrayList<>();
+            for (int tile = drawnTiles.nextSetBit(0); tile >= 0; ) {
+                int row = tile / columns;
+                int end = Math.min(drawnTiles.nextClearBit(tile), (row + 1) * columns);
+                int x = (tile % columns) * TILE_SIZE;
+                int y = row * TILE_SIZE;
+                regions.add(new Rectangle(x, y, Math.min((end - row * columns) * TILE_SIZE, target.getWidth()) - x,
+                        Math.min(TILE_SIZE, target.getHeight() - y)));
+                tile = drawnTiles.nextSetBit(end);
+            }
+            return regions;
+        }
+
+        /**
+         * One drawable element: its shape in user space, the transform to image space and how to
+         * paint it. Text primitives carry their string and font instead of a shape.
+         */
+        private static class Primitive {
+            Shape shape;
+            String text;
+            Font font;
+            float textX;
+            float textY;
+            AffineTransform transform;
+            Color fill;
+            Color stroke;
+            float strokeWidth;
+            Rectangle bounds;
+        }
+
+        /**
+         * The inheritable presentation attributes in effect for an element.
+         */
+        private static class Style implements Cloneable {
+            AffineTransform transform = new AffineTransform();
+            Color fill = Color.BLACK;
+            Color stroke;
+            float strokeWidth = 1;
+            float opacity = 1;
+            float fillOpacity = 1;
+            float strokeOpacity = 1;
+            boolean evenOdd;
+            float fontSize = 16;
+            String fontFamily = Font.SANS_SERIF;
+            boolean skipped;
+
+            @Override
+            protected Style clone() {
+                try {
+                    Style copy = (Style) super.clone();
+                    copy.transform = new AffineTransform(transform);
+                    return copy;
+                } catch (CloneNotSupportedException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        }
+
+        /**
+         * Parses the document from the stream and draws it onto the target image. The progress
+         * callback, if any, runs on the calling thread after each batch has been drawn.
+         */
+        public void importFrom(InputStream in, Runnable progress) throws XMLStreamException {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+
+            ExecutorService pool = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "svg-raster");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ArrayDeque<Style> styles = new ArrayDeque<>();
+            styles.push(new Style());
+            List<Primitive> batch = new ArrayList<>(BATCH_SIZE);
+            List<Future<?>> pending = new ArrayList<>();
+            Primitive text = null;
+            StringBuilder textContent = new StringBuilder();
+            try {
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        Style style = styles.peek().clone();
+                        if (!style.skipped) {
+                            applyAttributes(reader, style);
+                        }
+                        if (isContainerToSkip(name)) {
+                            style.skipped = true;
+                        }
+                        styles.push(style);
+                        if (style.skipped) {
+                            continue;
+                        }
+                        if (name.equals("svg") && styles.size() == 2) {
+                            applyViewport(reader, style);
+                        } else if (name.equals("text")) {
+                            text = createText(reader, style);
+                            textContent.setLength(0);
+                        } else if (text == null) {
+                            Primitive primitive = createShape(reader, name, style);
+                            if (primitive != null) {
+                                batch.add(primitive);
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.CHARACTERS && text != null && !styles.peek().skipped) {
+                        textContent.append(reader.getText());
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        styles.pop();
+                        if (text != null && reader.getLocalName().equals("text")) {
+                            text.text = textContent.toString().trim().replaceAll("\\s+", " ");
+                            if (!text.text.isEmpty() && setTextBounds(text)) {
+                                batch.add(text);
+                            }
+                            text = null;
+                        }
+                    }
+                    if (batch.size() >= BATCH_SIZE) {
+                        pending = flush(pool, batch, pending, progress);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                pending = flush(pool, batch, pending, progress);
+                await(pending, progress);
+            } finally {
+                reader.close();
+                pool.shutdownNow();
+            }
+        }
+
+        private static boolean isContainerToSkip(String name) {
+            switch (name) {
+                case "defs":
+                case "symbol":
+                case "clipPath":
+                case "mask":
+                case "pattern":
+                case "marker":
+                case "style":
+                case "script":
+                case "metadata":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Waits for the previous batch to finish drawing, then bins this batch into tiles and
+         * submits one task per tile it touches. Waiting first keeps batches in document order
+         * within every tile while letting parsing of the next batch overlap with drawing.
+         */
+        private List<Future<?>> flush(ExecutorService pool, List<Primitive> batch, List<Future<?>> previous,
+                Runnable progress) {
+            await(previous, progress);
+            List<Future<?>> submitted = new ArrayList<>();
+            if (batch.isEmpty()) {
+                return submitted;
+            }
+            primitiveCount += batch.size();
+            int columns = (target.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+            int rows = (target.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+            int[][] bins = new int[columns * rows][];
+            int[] counts = new int[columns * rows];
+            for (int i = 0; i < batch.size(); i++) {
+                Rectangle bounds = batch.get(i).bounds;
+                int firstColumn = Math.max(0, bounds.x / TILE_SIZE);
+                int lastColumn = Math.min(columns - 1, (bounds.x + bounds.width) / TILE_SIZE);
+                int firstRow = Math.max(0, bounds.y / TILE_SIZE);
+                int lastRow = Math.min(rows - 1, (bounds.y + bounds.height) / TILE_SIZE);
+                for (int row = firstRow; row <= lastRow; row++) {
+                    for (int column = firstColumn; column <= lastColumn; column++) {
+                        int tile = row * columns + column;
+                        if (bins[tile] == null) {
+                            bins[tile] = new int[16];
+                        } else if (counts[tile] == bins[tile].length) {
+                            bins[tile] = Arrays.copyOf(bins[tile], counts[tile] * 2);
+                        }
+                        bins[tile][counts[tile]++] = i;
+                    }
+                }
+            }
+            for (int tile = 0; tile < bins.length; tile++) {
+                if (counts[tile] == 0) {
+                    continue;
+                }
+                int x = (tile % columns) * TILE_SIZE;
+                int y = (tile / columns) * TILE_SIZE;
+                Rectangle area = new Rectangle(x, y, Math.min(TILE_SIZE, target.getWidth() - x),
+                        Math.min(TILE_SIZE, target.getHeight() - y));
+                int[] indices = bins[tile];
+                int count = counts[tile];
+                drawnTiles.set(tile);
+                submitted.add(pool.submit(() -> drawTile(area, batch, indices, count)));
+            }
+            return submitted;
+        }
+
+        private void await(List<Future<?>> futures, Runnable progress) {
+            if (futures.isEmpty()) {
+                return;
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(ex);
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+            if (progress != null) {
+                progress.run();
+            }
+        }
+
+        private void drawTile(Rectangle area, List<Primitive> batch, int[] indices, int count) {
+            Graphics2D g = target.createGraphics();
+            try {
+                g.clipRect(area.x, area.y, area.width, area.height);
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiased
+                        ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+                g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, antialiased
+                        ? RenderingHints.VALUE_TEXT_ANTIALIAS_ON : RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+                g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+                AffineTransform base = g.getTransform();
+                BasicStroke stroke = null;
+                for (int i = 0; i < count; i++) {
+                    Primitive primitive = batch.get(indices[i]);
+                    g.setTransform(base);
+                    g.transform(primitive.transform);
+                    if (primitive.text != null) {
+                        g.setFont(primitive.font);
+                        g.setColor(primitive.fill);
+                        g.drawString(primitive.text, primitive.textX, primitive.textY);
+                        continue;
+                    }
+                    if (primitive.fill != null) {
+                        g.setColor(primitive.fill);
+                        g.fill(primitive.shape);
+                    }
+                    if (primitive.stroke != null) {
+                        g.setColor(primitive.stroke);
+                        if (stroke == null || stroke.getLineWidth() != primitive.strokeWidth) {
+                            stroke = new BasicStroke(primitive.strokeWidth, BasicStroke.CAP_BUTT,
+                                    BasicStroke.JOIN_MITER);
+                            g.setStroke(stroke);
+                        }
+                        g.draw(primitive.shape);
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+
+        /**
+         * Maps the root viewBox onto the width and height of the root element, or onto the target
+         * image when those are missing.
+         */
+        private void applyViewport(XMLStreamReader reader, Style style) {
+            String viewBox = reader.getAttributeValue(null, "viewBox");
+            if (viewBox == null) {
+                return;
+            }
+            float[] box = parseNumbers(viewBox);
+            if (box.length < 4 || box[2] <= 0 || box[3] <= 0) {
+                return;
+            }
+            double width = parseLength(reader.getAttributeValue(null, "width"), target.getWidth());
+            double height = parseLength(reader.getAttributeValue(null, "height"), target.getHeight());
+            double scale = Math.min(width / box[2], height / box[3]);
+            AffineTransform viewport = AffineTransform.getScaleInstance(scale, scale);
+            viewport.translate(-box[0], -box[1]);
+            style.transform.concatenate(viewport);
+        }
+
+        private void applyAttributes(XMLStreamReader reader, Style style) {
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                String name = reader.getAttributeLocalName(i);
+                String value = reader.getAttributeValue(i);
+                if (name.equals("style")) {
+                    for (String declaration : value.split(";")) {
+                        int colon = declaration.indexOf(':');
+                        if (colon > 0) {
+                            applyProperty(style, declaration.substring(0, colon).trim(),
+                                    declaration.substring(colon + 1).trim());
+                        }
+                    }
+                } else if (name.equals("transform")) {
+                    style.transform.concatenate(parseTransform(value));
+                } else {
+                    applyProperty(style, name, value.trim());
+                }
+            }
+        }
+
+        private void applyProperty(Style style, String name, String value) {
+            switch (name) {
+                case "fill":
+                    style.fill = parseColor(value, style.fill);
+                    break;
+                case "stroke":
+                    style.stroke = parseColor(value, style.stroke);
+                    break;
+                case "stroke-width":
+                    style.strokeWidth = (float) parseLength(value, style.strokeWidth);
+                    break;
+                case "opacity":
+                    style.opacity *= parseOpacity(value);
+                    break;
+                case "fill-opacity":
+                    style.fillOpacity = parseOpacity(value);
+                    break;
+                case "stroke-opacity":
+                    style.strokeOpacity = parseOpacity(value);
+                    break;
+                case "fill-rule":
+                    style.evenOdd = value.equals("evenodd");
+                    break;
+                case "font-size":
+                    style.fontSize = (float) parseLength(value, style.fontSize);
+                    break;
+                case "font-family":
+                    style.fontFamily = value.split(",")[0].replace("'", "").replace("\"", "").trim();
+                    break;
+                case "display":
+                    if (value.equals("none")) {
+                        style.skipped = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private Primitive createShape(XMLStreamReader reader, String name, Style style) {
+            Shape shape;
+            switch (name) {
+                case "line":
+                    shape = new Line2D.Float(attribute(reader, "x1"), attribute(reader, "y1"),
+                            attribute(reader, "x2"), attribute(reader, "y2"));
+                    break;
+                case "rect": {
+                    float width = attribute(reader, "width");
+                    float height = attribute(reader, "height");
+                    float rx = attribute(reader, "rx");
+                    float ry = attribute(reader, "ry");
+                    if (rx == 0) {
+                        rx = ry;
+                    } else if (ry == 0) {
+                        ry = rx;
+                    }
+                    shape = rx > 0
+                            ? new RoundRectangle2D.Float(attribute(reader, "x"), attribute(reader, "y"), width,
+                                    height, Math.min(width, rx * 2), Math.min(height, ry * 2))
+                            : new Rectangle2D.Float(attribute(reader, "x"), attribute(reader, "y"), width, height);
+                    break;
+                }
+                case "circle": {
+                    float r = attribute(reader, "r");
+                    shape = new Ellipse2D.Float(attribute(reader, "cx") - r, attribute(reader, "cy") - r, r * 2, r * 2);
+                    break;
+                }
+                case "ellipse": {
+                    float rx = attribute(reader, "rx");
+                    float ry = attribute(reader, "ry");
+                    shape = new Ellipse2D.Float(attribute(reader, "cx") - rx, attribute(reader, "cy") - ry, rx * 2,
+                            ry * 2);
+                    break;
+                }
+                case "polygon":
+                case "polyline": {
+                    String points = reader.getAttributeValue(null, "points");
+                    float[] coordinates = parseNumbers(points == null ? "" : points);
+                    if (coordinates.length < 4) {
+                        return null;
+                    }
+                    Path2D.Float path = new Path2D.Float(style.evenOdd ? Path2D.WIND_EVEN_ODD : Path2D.WIND_NON_ZERO,
+                            coordinates.length / 2 + 1);
+                    path.moveTo(coordinates[0], coordinates[1]);
+                    for (int i = 2; i + 1 < coordinates.length; i += 2) {
+                        path.lineTo(coordinates[i], coordinates[i + 1]);
+                    }
+                    if (name.equals("polygon")) {
+                        path.closePath();
+                    }
+                    shape = path;
+                    break;
+                }
+                case "path": {
+                    String data = reader.getAttributeValue(null, "d");
+                    if (data == null) {
+                        return null;
+                    }
+                    shape = new PathParser(data).parse(style.evenOdd);
+                    break;
+                }
+                default:
+                    return null;
+            }
+            Primitive primitive = new Primitive();
+            primitive.shape = shape;
+            primitive.transform = style.transform;
+            primitive.fill = name.equals("line") ? null : withOpacity(style.fill, style.opacity * style.fillOpacity);
+            primitive.stroke = withOpacity(style.stroke, style.opacity * style.strokeOpacity);
+            primitive.strokeWidth = style.strokeWidth;
+            if (primitive.fill == null && primitive.stroke == null) {
+                return null;
+            }
+            Rectangle2D bounds = shape.getBounds2D();
+            if (primitive.stroke != null) {
+                // Miter joins can reach further than half the stroke width; allow for the default limit.
+                double margin = primitive.strokeWidth * 2;
+                bounds = new Rectangle2D.Double(bounds.getX() - margin, bounds.getY() - margin,
+                        bounds.getWidth() + margin * 2, bounds.getHeight() + margin * 2);
+            }
+            return setBounds(primitive, bounds) ? primitive : null;
+        }
+
+        private Primitive createText(XMLStreamReader reader, Style style) {
+            Primitive primitive = new Primitive();
+            primitive.transform = style.transform;
+            primitive.fill = withOpacity(style.fill, style.opacity * style.fillOpacity);
+            primitive.font = new Font(style.fontFamily, Font.PLAIN, 1).deriveFont(style.fontSize);
+            String xs = reader.getAttributeValue(null, "x");
+            String ys = reader.getAttributeValue(null, "y");
+            float[] x = xs == null ? new float[0] : parseNumbers(xs);
+            float[] y = ys == null ? new float[0] : parseNumbers(ys);
+            primitive.textX = x.length > 0 ? x[0] : 0;
+            primitive.textY = y.length > 0 ? y[0] : 0;
+            return primitive;
+        }
+
+        /**
+         * Estimates text bounds from the font size so that text can be binned without measuring
+         * it; the estimate is generous so glyphs are never clipped at a tile edge.
+         */
+        private boolean setTextBounds(Primitive text) {
+            if (text.fill == null) {
+                return false;
+            }
+            float size = text.font.getSize2D();
+            Rectangle2D bounds = new Rectangle2D.Float(text.textX - size, text.textY - size * 1.5f,
+                    size * (text.text.length() + 2), size * 2.5f);
+            return setBounds(text, bounds);
+        }
+
+        private boolean setBounds(Primitive primitive, Rectangle2D userBounds) {
+            Rectangle bounds = primitive.transform.createTransformedShape(userBounds).getBounds();
+            bounds.grow(2, 2);
+            primitive.bounds = bounds.intersection(new Rectangle(0, 0, target.getWidth(), target.getHeight()));
+            return !primitive.bounds.isEmpty();
+        }
+
+        private static Color withOpacity(Color color, float opacity) {
+            if (color == null || opacity <= 0) {
+                return null;
+            }
+            if (opacity >= 1) {
+                return color;
+            }
+            return new Color(color.getRed(), color.getGreen(), color.getBlue(), Math.round(color.getAlpha() * opacity));
+        }
+
+        private static float attribute(XMLStreamReader reader, String name) {
+            return (float) parseLength(reader.getAttributeValue(null, name), 0);
+        }
+
+        private static float parseOpacity(String value) {
+            try {
+                return Math.max(0, Math.min(1, Float.parseFloat(value)));
+            } catch (NumberFormatException ex) {
+                return 1;
+            }
+        }
+
+        /**
+         * Parses a length in px, pt, mm, cm or in and returns it in pixels. Percentages and
+         * unparseable values yield the fallback.
+         */
+        static double parseLength(String value, double fallback) {
+            if (value == null) {
+                return fallback;
+            }
+            value = value.trim();
+            double unit = 1;
+            if (value.endsWith("%")) {
+                return fallback;
+            } else if (value.endsWith("px")) {
+                value = value.substring(0, value.length() - 2);
+            } else if (value.endsWith("pt")) {
+                unit = 4.0 / 3;
+                value = value.substring(0, value.length() - 2);
+            } else if (value.endsWith("mm")) {
+                unit = 96 / 25.4;
+                value = value.substring(0, value.length() - 2);
+            } else if (value.endsWith("cm")) {
+                unit = 96 / 2.54;
+                value = value.substring(0, value.length() - 2);
+            } else if (value.endsWith("in")) {
+                unit = 96;
+                value = value.substring(0, value.length() - 2);
+            }
+            try {
+                return Double.parseDouble(value.trim()) * unit;
+            } catch (NumberFormatException ex) {
+                return fallback;
+            }
+        }
+
+        static Color parseColor(String value, Color inherited) {
+            value = value.trim().toLowerCase();
+            if (value.equals("none") || value.equals("transparent")) {
+                return null;
+            }
+            if (value.equals("inherit") || value.equals("currentcolor") || value.startsWith("url(")) {
+                return inherited;
+            }
+            try {
+                if (value.startsWith("#")) {
+                    String hex = value.substring(1);
+                    if (hex.length() == 3) {
+                        hex = new String(new char[] { hex.charAt(0), hex.charAt(0), hex.charAt(1), hex.charAt(1),
+                                hex.charAt(2), hex.charAt(2) });
+                    }
+                    return new Color(Integer.parseInt(hex, 16));
+                }
+                if (value.startsWith("rgb(")) {
+                    String[] parts = value.substring(4, value.length() - 1).split(",");
+                    int[] channels = new int[3];
+                    for (int i = 0; i < 3; i++) {
+                        String part = parts[i].trim();
+                        channels[i] = part.endsWith("%")
+                                ? Math.round(Float.parseFloat(part.substring(0, part.length() - 1)) * 2.55f)
+                                : Integer.parseInt(part);
+                        channels[i] = Math.max(0, Math.min(255, channels[i]));
+                    }
+                    return new Color(channels[0], channels[1], channels[2]);
+                }
+            } catch (RuntimeException ex) {
+                return inherited;
+            }
+            Color named = NAMED_COLORS.get(value);
+            return named != null ? named : inherited;
+        }
+
+        static AffineTransform parseTransform(String value) {
+            AffineTransform result = new AffineTransform();
+            int index = 0;
+            while (index < value.length()) {
+                int open = value.indexOf('(', index);
+                int close = value.indexOf(')', open + 1);
+                if (open < 0 || close < 0) {
+                    break;
+                }
+                String name = value.substring(index, open).replace(",", "").trim();
+                float[] a = parseNumbers(value.substring(open + 1, close));
+                index = close + 1;
+                switch (name) {
+                    case "matrix":
+                        if (a.length == 6) {
+                            result.concatenate(new AffineTransform(a[0], a[1], a[2], a[3], a[4], a[5]));
+                        }
+                        break;
+                    case "translate":
+                        if (a.length > 0) {
+                            result.translate(a[0], a.length > 1 ? a[1] : 0);
+                        }
+                        break;
+                    case "scale":
+                        if (a.length > 0) {
+                            result.scale(a[0], a.length > 1 ? a[1] : a[0]);
+                        }
+                        break;
+                    case "rotate":
+                        if (a.length == 3) {
+                            result.rotate(Math.toRadians(a[0]), a[1], a[2]);
+                        } else if (a.length > 0) {
+                            result.rotate(Math.toRadians(a[0]));
+                        }
+                        break;
+                    case "skewX":
+                        if (a.length > 0) {
+                            result.shear(Math.tan(Math.toRadians(a[0])), 0);
+                        }
+                        break;
+                    case "skewY":
+                        if (a.length > 0) {
+                            result.shear(0, Math.tan(Math.toRadians(a[0])));
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Parses a list of numbers such as a points or transform argument list. Like path data,
+         * a malformed token quietly ends the list and the numbers before it are kept.
+         */
+        static float[] parseNumbers(String value) {
+            PathParser parser = new PathParser(value);
+            float[] numbers = new float[8];
+            int count = 0;
+            try {
+                while (parser.hasNumber()) {
+                    if (count == numbers.length) {
+                        numbers = Arrays.copyOf(numbers, count * 2);
+                    }
+                    numbers[count++] = parser.number();
+                }
+            } catch (NumberFormatException ex) {
+                // Keep what was read so far, as for path data.
+            }
+            return Arrays.copyOf(numbers, count);
+        }
+
+        /**
+         * Parses SVG path data (M, L, H, V, C, S, Q, T, A and Z in absolute and relative forms)
+         * into a Path2D.
+         */
+        static class PathParser {
+            private final String data;
+            private int position;
+
+            PathParser(String data) {
+                this.data = data;
+            }
+
+            /**
+             * Returns the path described by the data. As in browsers, malformed data ends the path
+             * at the last complete command instead of discarding it.
+             */
+            Path2D.Float parse(boolean evenOdd) {
+                Path2D.Float path = new Path2D.Float(evenOdd ? Path2D.WIND_EVEN_ODD : Path2D.WIND_NON_ZERO);
+                try {
+                    parseInto(path);
+                } catch (IllegalArgumentException ex) {
+                    // Keep what was parsed before the error.
+                }
+                return path;
+            }
+
+            private void parseInto(Path2D.Float path) {
+                float x = 0;
+                float y = 0;
+                float startX = 0;
+                float startY = 0;
+                float controlX = 0;
+                float controlY = 0;
+                char previous = ' ';
+                char command = ' ';
+                boolean started = false;
+                while (true) {
+                    skipSeparators();
+                    if (position >= data.length()) {
+                        break;
+                    }
+                    char c = data.charAt(position);
+                    if (Character.isLetter(c) && c != 'e' && c != 'E') {
+                        command = c;
+                        position++;
+                    } else if (command == ' ' || command == 'Z' || command == 'z') {
+                        break;
+                    } else if (command == 'M') {
+                        command = 'L';
+                    } else if (command == 'm') {
+                        command = 'l';
+                    }
+                    boolean relative = Character.isLowerCase(command);
+                    float ox = relative ? x : 0;
+                    float oy = relative ? y : 0;
+                    if (!started && Character.toUpperCase(command) != 'M') {
+                        path.moveTo(x, y);
+                        started = true;
+                    }
+                    switch (Character.toUpperCase(command)) {
+                        case 'M':
+                            x = ox + number();
+                            y = oy + number();
+                            path.moveTo(x, y);
+                            startX = x;
+                            startY = y;
+                            started = true;
+                            break;
+                        case 'L':
+                            x = ox + number();
+                            y = oy + number();
+                            path.lineTo(x, y);
+                            break;
+                        case 'H':
+                            x = ox + number();
+                            path.lineTo(x, y);
+                            break;
+                        case 'V':
+                            y = oy + number();
+                            path.lineTo(x, y);
+                            break;
+                        case 'C': {
+                            float x1 = ox + number();
+                            float y1 = oy + number();
+                            controlX = ox + number();
+                            controlY = oy + number();
+                            x = ox + number();
+                            y = oy + number();
+                            path.curveTo(x1, y1, controlX, controlY, x, y);
+                            break;
+                        }
+                        case 'S': {
+                            boolean smooth = "CcSs".indexOf(previous) >= 0;
+                            float x1 = smooth ? 2 * x - controlX : x;
+                            float y1 = smooth ? 2 * y - controlY : y;
+                            controlX = ox + number();
+                            controlY = oy + number();
+                            x = ox + number();
+                            y = oy + number();
+                            path.curveTo(x1, y1, controlX, controlY, x, y);
+                            break;
+                        }
+                        case 'Q':
+                            controlX = ox + number();
+                            controlY = oy + number();
+                            x = ox + number();
+                            y = oy + number();
+                            path.quadTo(controlX, controlY, x, y);
+                            break;
+                        case 'T': {
+                            boolean smooth = "QqTt".indexOf(previous) >= 0;
+                            controlX = smooth ? 2 * x - controlX : x;
+                            controlY = smooth ? 2 * y - controlY : y;
+                            x = ox + number();
+                            y = oy + number();
+                            path.quadTo(controlX, controlY, x, y);
+                            break;
+                        }
+                        case 'A': {
+                            float rx = Math.abs(number());
+                            float ry = Math.abs(number());
+                            float angle = number();
+                            boolean largeArc = flag();
+                            boolean sweep = flag();
+                            float endX = ox + number();
+                            float endY = oy + number();
+                            arcTo(path, x, y, rx, ry, angle, largeArc, sweep, endX, endY);
+                            x = endX;
+                            y = endY;
+                            break;
+                        }
+                        case 'Z':
+                            path.closePath();
+                            x = startX;
+                            y = startY;
+                            break;
+                        default:
+                            // Unknown command: stop rather than misread the remaining data.
+                            return;
+                    }
+                    previous = command;
+                }
+            }
+
+            /**
+             * Appends an SVG elliptical arc by converting its endpoint form to a center form
+             * (SVG 1.1 appendix F.6.5) and adding the matching Arc2D.
+             */
+            private static void arcTo(Path2D.Float path, float x0, float y0, double rx, double ry, double angle,
+                    boolean largeArc, boolean sweep, float x, float y) {
+                if (rx == 0 || ry == 0) {
+                    path.lineTo(x, y);
+                    return;
+                }
+                if (x0 == x && y0 == y) {
+                    return;
+                }
+                double phi = Math.toRadians(angle);
+                double cos = Math.cos(phi);
+                double sin = Math.sin(phi);
+                double dx = (x0 - x) / 2.0;
+                double dy = (y0 - y) / 2.0;
+                double x1 = cos * dx + sin * dy;
+                double y1 = -sin * dx + cos * dy;
+                double lambda = (x1 * x1) / (rx * rx) + (y1 * y1) / (ry * ry);
+                if (lambda > 1) {
+                    rx *= Math.sqrt(lambda);
+                    ry *= Math.sqrt(lambda);
+                }
+                double numerator = rx * rx * ry * ry - rx * rx * y1 * y1 - ry * ry * x1 * x1;
+                double denominator = rx * rx * y1 * y1 + ry * ry * x1 * x1;
+                double coefficient = Math.sqrt(Math.max(0, numerator / denominator));
+                if (largeArc == sweep) {
+                    coefficient = -coefficient;
+                }
+                double cx1 = coefficient * rx * y1 / ry;
+                double cy1 = -coefficient * ry * x1 / rx;
+                double cx = cos * cx1 - sin * cy1 + (x0 + x) / 2.0;
+                double cy = sin * cx1 + cos * cy1 + (y0 + y) / 2.0;
+                double theta = Math.atan2((y1 - cy1) / ry, (x1 - cx1) / rx);
+                double delta = Math.atan2((-y1 - cy1) / ry, (-x1 - cx1) / rx) - theta;
+                if (sweep && delta < 0) {
+                    delta += 2 * Math.PI;
+                } else if (!sweep && delta > 0) {
+                    delta -= 2 * Math.PI;
+                }
+                // Arc2D measures angles counterclockwise on screen, SVG clockwise.
+                Arc2D.Double arc = new Arc2D.Double(-rx, -ry, rx * 2, ry * 2, -Math.toDegrees(theta),
+                        -Math.toDegrees(delta), Arc2D.OPEN);
+                AffineTransform placement = AffineTransform.getTranslateInstance(cx, cy);
+                placement.rotate(phi);
+                path.append(placement.createTransformedShape(arc), true);
+            }
+
+            private void skipSeparators() {
+                while (position < data.length()) {
+                    char c = data.charAt(position);
+                    if (c == ',' || Character.isWhitespace(c)) {
+                        position++;
+                    } else {
+                        break;
+                    }
+                }
+            }
+
+            boolean hasNumber() {
+                skipSeparators();
+                if (position >= data.length()) {
+                    return false;
+                }
+                char c = data.charAt(position);
+                return Character.isDigit(c) || c == '-' || c == '+' || c == '.';
+            }
+
+            float number() {
+                if (!hasNumber()) {
+                    throw new IllegalArgumentException("Expected a number at " + position + " in path data");
+                }
+                int start = position;
+                if (data.charAt(position) == '-' || data.charAt(position) == '+') {
+                    position++;
+                }
+                boolean seenDot = false;
+                boolean seenExponent = false;
+                while (position < data.length()) {
+                    char c = data.charAt(position);
+                    if (Character.isDigit(c)) {
+                        position++;
+                    } else if (c == '.' && !seenDot && !seenExponent) {
+                        seenDot = true;
+                        position++;
+                    } else if ((c == 'e' || c == 'E') && !seenExponent) {
+                        seenExponent = true;
+                        position++;
+                        if (position < data.length() && (data.charAt(position) == '-' || data.charAt(position) == '+')) {
+                            position++;
+                        }
+                    } else {
+                        break;
+                    }
+                }
+                return Float.parseFloat(data.substring(start, position));
+            }
+
+            private boolean flag() {
+                skipSeparators();
+                if (position >= data.length()) {
+                    throw new IllegalArgumentException("Expected an arc flag in path data");
+                }
+                return data.charAt(position++) != '0';
+            }
+        }
+    }
+
+    /**
+     * The RenderQuality enum is the rendering quality policy of the DrawingPanel.
+     * FAST draws everything aliased, for slow terminals. ADAPTIVE draws a cheap aliased preview
+     * on an overlay while a gesture or animation is in progress and renders the gesture again at
+     * full quality when it ends. HIGH draws at full quality all the time.
+     *
+     * The starting level can be chosen with -Dcanvas.quality=fast|adaptive|high.
+     */
+enum RenderQuality {
+        FAST("Fast"), ADAPTIVE("Adaptive"), HIGH("High");
+
+        private final String label;
+
+        RenderQuality(String label) {
+            this.label = label;
+        }
+
+        boolean previewsGestures() {
+            return this == ADAPTIVE;
+        }
+
+        boolean antialiasesCommits() {
+            return this != FAST;
+        }
+
+        /**
+         * Sets the rendering hints for either a preview or a committed rendering at this level.
+         */
+        void applyHints(Graphics2D g, boolean preview) {
+            if (preview || this == FAST) {
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+                g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+                g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_NORMALIZE);
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            } else {
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            }
+        }
+
+        static RenderQuality fromSystemProperty() {
+            String value = System.getProperty("canvas.quality", "adaptive");
+            for (RenderQuality quality : values()) {
+                if (quality.name().equalsIgnoreCase(value)) {
+                    return quality;
+                }
+            }
+            return ADAPTIVE;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * The BrushEngine class paints pen and eraser strokes as a series of round dabs spaced evenly
+     * along the path, so fast drags leave no gaps. Each dab is an alpha mask for a given size and
+     * hardness; masks are computed once and shared. Dabs are blended straight into the int[]
+     * pixels of a TYPE_INT_ARGB image without allocating. The eraser lowers the alpha of the
+     * pixels it touches instead of painting white.
+     *
+     * An engine keeps the spacing carried over between segments of a stroke, so each source of
+     * strokes (local input, a shared session) uses its own engine.
+     */
+static class BrushEngine {
+        private static final float SPACING = 0.25f;
+        private static final Map<Integer, int[]> MASKS = new ConcurrentHashMap<>();
+
+        private int red, green, blue;
+        private int alpha;
+        private int size = 1;
+        private int hardness = 100;
+        private int opacity = 100;
+        private boolean erasing;
+
+        private int[] mask;
+        private int maskSize;
+        private int maskHardness = -1;
+        private boolean maskAntialiased;
+        private float distanceToNextDab;
+        private long dabCount;
+        private int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY;
+
+        /**
+         * Sets the brush for the following dabs. Size is a diameter in pixels, hardness and
+         * opacity are percentages. An aliased brush uses a hard-edged mask and is meant for fast
+         * previews.
+         */
+        void configure(int argb, int size, int hardness, int opacity, boolean erasing, boolean antialiased) {
+            this.red = (argb >> 16) & 0xFF;
+            this.green = (argb >> 8) & 0xFF;
+            this.blue = argb & 0xFF;
+            this.size = Math.max(1, size);
+            this.hardness = Math.max(0, Math.min(100, hardness));
+            this.opacity = Math.max(1, Math.min(100, opacity));
+            this.erasing = erasing;
+            // Effective alpha of a fully covered mask pixel, 0-255.
+            this.alpha = ((argb >>> 24) * this.opacity + 50) / 100;
+            if (this.size != maskSize || this.hardness != maskHardness || antialiased != maskAntialiased) {
+                mask = maskFor(this.size, this.hardness, antialiased);
+                maskSize = this.size;
+                maskHardness = this.hardness;
+                maskAntialiased = antialiased;
+            }
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        int getOpacity() {
+            return opacity;
+        }
+
+        long getDabCount() {
+            return dabCount;
+        }
+
+        /**
+         * Starts a new stroke; the next segment places a dab at its first point.
+         */
+        void beginStroke() {
+            distanceToNextDab = 0;
+        }
+
+        /**
+         * Places dabs along the segment from (x0, y0) to (x1, y1) every SPACING brush diameters,
+         * continuing the spacing left over from the previous segment.
+         */
+        void strokeTo(int[] pixels, int width, int height, float x0, float y0, float x1, float y1) {
+            float step = Math.max(1f, size * SPACING);
+            float dx = x1 - x0;
+            float dy = y1 - y0;
+            float length = (float) Math.sqrt(dx * dx + dy * dy);
+            float distance = distanceToNextDab;
+            if (length == 0) {
+                if (distance == 0) {
+                    dab(pixels, width, height, x0, y0);
+                    distanceToNextDab = step;
+                }
+                return;
+            }
+            while (distance <= length) {
+                float t = distance / length;
+                dab(pixels, width, height, x0 + dx * t, y0 + dy * t);
+                distance += step;
+            }
+            distanceToNextDab = distance - length;
+        }
+
+        void dab(int[] pixels, int width, int height, float centerX, float centerY) {
+            int d = size;
+            int left = Math.round(centerX - d / 2f);
+            int top = Math.round(centerY - d / 2f);
+            int startX = Math.max(0, left);
+            int startY = Math.max(0, top);
+            int endX = Math.min(width, left + d);
+            int endY = Math.min(height, top + d);
+            if (startX >= endX || startY >= endY) {
+                return;
+            }
+            int[] m = mask;
+            for (int y = startY; y < endY; y++) {
+                int row = y * width;
+                int maskRow = (y - top) * d - left;
+                for (int x = startX; x < endX; x++) {
+                    int a = (m[maskRow + x] * alpha + 127) / 255;
+                    if (a == 0) {
+                        continue;
+                    }
+                    int dst = pixels[row + x];
+                    int dstAlpha = dst >>> 24;
+                    int remaining = dstAlpha * (255 - a) / 255;
+                    if (erasing) {
+                        pixels[row + x] = (remaining << 24) | (dst & 0xFFFFFF);
+                        continue;
+                    }
+                    int outAlpha = a + remaining;
+                    int r = (red * a + ((dst >> 16) & 0xFF) * remaining) / outAlpha;
+                    int g = (green * a + ((dst >> 8) & 0xFF) * remaining) / outAlpha;
+                    int b = (blue * a + (dst & 0xFF) * remaining) / outAlpha;
+                    pixels[row + x] = (outAlpha << 24) | (r << 16) | (g << 8) | b;
+                }
+            }
+            dabCount++;
+            dirtyMinX = Math.min(dirtyMinX, startX);
+            dirtyMinY = Math.min(dirtyMinY, startY);
+            dirtyMaxX = Math.max(dirtyMaxX, endX);
+            dirtyMaxY = Math.max(dirtyMaxY, endY);
+        }
+
+        void resetDirty() {
+            dirtyMinX = Integer.MAX_VALUE;
+            dirtyMinY = Integer.MAX_VALUE;
+            dirtyMaxX = Integer.MIN_VALUE;
+            dirtyMaxY = Integer.MIN_VALUE;
+        }
+
+        boolean hasDirty() {
+            return dirtyMaxX > dirtyMinX;
+        }
+
+        int getDirtyX() {
+            return dirtyMinX;
+        }
+
+        int getDirtyY() {
+            return dirtyMinY;
+        }
+
+        int getDirtyWidth() {
+            return dirtyMaxX - dirtyMinX;
+        }
+
+        int getDirtyHeight() {
+            return dirtyMaxY - dirtyMinY;
+        }
+
+        static int[] maskFor(int size, int hardness, boolean antialiased) {
+            int key = (size * 101 + hardness) * 2 + (antialiased ? 1 : 0);
+            return MASKS.computeIfAbsent(key, k -> antialiased ? createMask(size, hardness / 100f)
+                    : createAliasedMask(size));
+        }
+
+        /**
+         * Builds a hard-edged round mask with every pixel either opaque or transparent.
+         */
+        static int[] createAliasedMask(int size) {
+            int[] mask = new int[size * size];
+            float radius = size / 2f;
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    float dx = x + 0.5f - radius;
+                    float dy = y + 0.5f - radius;
+                    mask[y * size + x] = dx * dx + dy * dy <= radius * radius + 0.25f ? 255 : 0;
+                }
+            }
+            return mask;
+        }
+
+        /**
+         * Builds a round alpha mask (0-255) of the given diameter. Pixels inside the hardness
+         * radius are opaque and fall off smoothly to the edge; the edge itself is antialiased.
+         */
+        static int[] createMask(int size, float hardness) {
+            int[] mask = new int[size * size];
+            float radius = size / 2f;
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    float dx = x + 0.5f - radius;
+                    float dy = y + 0.5f - radius;
+                    float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                    float coverage = Math.max(0f, Math.min(1f, radius + 0.5f - distance));
+                    float t = distance / radius;
+                    float falloff;
+                    if (t <= hardness) {
+                        falloff = 1f;
+                    } else if (t >= 1f) {
+                        falloff = 0f;
+                    } else {
+                        float f = (t - hardness) / (1f - hardness);
+                        falloff = 1f - f * f * (3f - 2f * f);
+                    }
+                    float value = hardness >= 1f ? coverage : Math.min(coverage, falloff);
+                    mask[y * size + x] = Math.round(value * 255f);
+                }
+            }
+            return mask;
+        }
+    }
+
+    /**
+     * The BrushBenchmark class measures how many dabs per second the brush engine blends at
+     * several brush sizes. Run it with: java Canvas$BrushBenchmark
+     */
+static class BrushBenchmark {
+        private static final int[] SIZES = { 2, 10, 20, 50, 100 };
+        private static final int CANVAS_SIZE = 2048;
+
+        public static void main(String[] args) {
+            int[] pixels = new int[CANVAS_SIZE * CANVAS_SIZE];
+            Arrays.fill(pixels, 0xFFFFFFFF);
+            for (int size : SIZES) {
+                for (int hardness : new int[] { 100, 50 }) {
+                    BrushEngine engine = new BrushEngine();
+                    engine.configure(0xFF000000, size, hardness, 50, false, true);
+                    run(engine, pixels, 20000);
+                    long before = engine.getDabCount();
+                    long start = System.nanoTime();
+                    run(engine, pixels, 200000);
+                    long elapsed = System.nanoTime() - start;
+                    long dabs = engine.getDabCount() - before;
+                    System.out.printf("size %3d hardness %3d%%: %,12.0f dabs/s%n", size, hardness,
+                            dabs * 1e9 / elapsed);
+                }
+            }
+        }
+
+        /**
+         * Drags the brush back and forth across the canvas until it has placed at least the
+         * given number of dabs.
+         */
+        private static void run(BrushEngine engine, int[] pixels, long dabs) {
+            long target = engine.getDabCount() + dabs;
+            engine.beginStroke();
+            int y = 0;
+            while (engine.getDabCount() < target) {
+                engine.strokeTo(pixels, CANVAS_SIZE, CANVAS_SIZE, 0, y, CANVAS_SIZE, y + 40);
+                y = (y + 37) % (CANVAS_SIZE - 40);
+            }
+        }
+    }
+
+    /**
+     * The ImageFilter class is one operation the FilterPipeline can apply to the canvas. A filter
+     * reads a snapshot of the canvas and writes one tile of output at a time; getHalo tells the
+     * pipeline how far outside a tile the filter reads, so the snapshot can include those pixels.
+     */
+static abstract class ImageFilter {
+
+        abstract String getName();
+
+        /**
+         * Returns the parameters that, with the name, recreate this filter through create.
+         */
+        abstract Object[] getParameters();
+
+        int getHalo() {
+            return 0;
+        }
+
+        /**
+         * Filters the pixels of area, given in snapshot coordinates, from the snapshot src
+         * (srcWidth by srcHeight pixels) into dst, starting at dstOffset with rows dstScan apart.
+         */
+        abstract void apply(int[] src, int srcWidth, int srcHeight, Rectangle area, int[] dst, int dstOffset,
+                int dstScan);
+
+        static ImageFilter create(String name, String[] args) {
+            switch (name) {
+                case "Blur":
+                    return new ConvolutionFilter(Integer.parseInt(args[0]), 0);
+                case "Sharpen":
+                    return new ConvolutionFilter(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+                case "Grayscale":
+                    return new GrayscaleFilter();
+                case "Levels":
+                    return new LevelsFilter(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                            Double.parseDouble(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+                default:
+                    throw new IllegalArgumentException("Unknown filter " + name);
+            }
+        }
+    }
+
+    /**
+     * The ConvolutionFilter class blurs with a separable Gaussian kernel: a horizontal pass over
+     * the tile and its halo rows into a scratch buffer, then a vertical pass into the output. With
+     * a sharpen amount it instead applies an unsharp mask, pushing each pixel away from its
+     * blurred value by that percentage. Weights are 12-bit fixed point. Colors are premultiplied
+     * by alpha while they are blurred, so transparent pixels, such as erased ones, do not bleed
+     * their leftover color into their neighbours.
+     */
+static class ConvolutionFilter extends ImageFilter {
+        private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(() -> new int[0]);
+
+        private final int radius;
+        private final int sharpenAmount;
+        private final int[] kernel;
+
+        /**
+         * Creates a blur with the given radius in pixels, or, if sharpenAmount is above zero, a
+         * sharpen of that many percent using a blur of that radius.
+         */
+        ConvolutionFilter(int radius, int sharpenAmount) {
+            this.radius = Math.max(1, radius);
+            this.sharpenAmount = Math.max(0, sharpenAmount);
+            double sigma = Math.max(0.5, this.radius / 3.0);
+            double[] weights = new double[this.radius * 2 + 1];
+            double total = 0;
+            for (int k = -this.radius; k <= this.radius; k++) {
+                weights[k + this.radius] = Math.exp(-(k * k) / (2 * sigma * sigma));
+                total += weights[k + this.radius];
+            }
+            kernel = new int[weights.length];
+            int sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                kernel[i] = (int) Math.round(weights[i] / total * 4096);
+                sum += kernel[i];
+            }
+            kernel[this.radius] += 4096 - sum;
+        }
+
+        @Override
+        String getName() {
+            return sharpenAmount > 0 ? "Sharpen" : "Blur";
+        }
+
+        @Override
+        Object[] getParameters() {
+            return sharpenAmount > 0 ? new Object[] { radius, sharpenAmount } : new Object[] { radius };
+        }
+
+        @Override
+        int getHalo() {
+            return radius;
+        }
+
+        @Override
+        void apply(int[] src, int srcWidth, int srcHeight, Rectangle area, int[] dst, int dstOffset, int dstScan) {
+            int top = Math.max(0, area.y - radius);
+            int bottom = Math.min(srcHeight, area.y + area.height + radius);
+            int width = area.width;
+            int plane = (bottom - top) * width;
+            int span = width + radius * 2;
+            int[] scratch = SCRATCH.get();
+            if (scratch.length < plane * 4 + span * 4 + width * 4) {
+                scratch = new int[plane * 4 + span * 4 + width * 4];
+                SCRATCH.set(scratch);
+            }
+            // Layout: four channel planes of horizontally blurred rows, then one source row
+            // unpacked into channels with clamped edges, then four rows of vertical sums.
+            int rowBase = plane * 4;
+            int sumBase = rowBase + span * 4;
+
+            // Horizontal pass; sums keep 8 fractional bits so the vertical pass cannot overflow.
+            for (int y = top; y < bottom; y++) {
+                int row = y * srcWidth;
+                for (int i = 0; i < span; i++) {
+                    int sx = area.x - radius + i;
+                    int p = src[row + (sx < 0 ? 0 : sx >= srcWidth ? srcWidth - 1 : sx)];
+                    int alpha = p >>> 24;
+                    scratch[rowBase + i] = alpha;
+                    scratch[rowBase + span + i] = (((p >> 16) & 0xFF) * alpha + 127) / 255;
+                    scratch[rowBase + span * 2 + i] = (((p >> 8) & 0xFF) * alpha + 127) / 255;
+                    scratch[rowBase + span * 3 + i] = ((p & 0xFF) * alpha + 127) / 255;
+                }
+                int out = (y - top) * width;
+                for (int c = 0; c < 4; c++) {
+                    int in = rowBase + span * c;
+                    int target = plane * c + out;
+                    for (int x = 0; x < width; x++) {
+                        int sum = 0;
+                        for (int k = 0; k < kernel.length; k++) {
+                            sum += scratch[in + x + k] * kernel[k];
+                        }
+                        scratch[target + x] = sum >> 4;
+                    }
+                }
+            }
+
+            for (int y = 0; y < area.height; y++) {
+                int center = area.y + y;
+                Arrays.fill(scratch, sumBase, sumBase + width * 4, 0);
+                for (int k = -radius; k <= radius; k++) {
+                    int sy = center + k;
+                    sy = sy < 0 ? 0 : sy >= srcHeight ? srcHeight - 1 : sy;
+                    int weight = kernel[k + radius];
+                    int in = (sy - top) * width;
+                    for (int c = 0; c < 4; c++) {
+                        int from = plane * c + in;
+                        int to = sumBase + width * c;
+                        for (int x = 0; x < width; x++) {
+                            scratch[to + x] += scratch[from + x] * weight;
+                        }
+                    }
+                }
+                int out = dstOffset + y * dstScan;
+                for (int x = 0; x < width; x++) {
+                    int a = (scratch[sumBase + x] + (1 << 19)) >> 20;
+                    int r = (scratch[sumBase + width + x] + (1 << 19)) >> 20;
+                    int g = (scratch[sumBase + width * 2 + x] + (1 << 19)) >> 20;
+                    int b = (scratch[sumBase + width * 3 + x] + (1 << 19)) >> 20;
+                    r = unpremultiply(r, a);
+                    g = unpremultiply(g, a);
+                    b = unpremultiply(b, a);
+                    if (sharpenAmount > 0) {
+                        int p = src[center * srcWidth + area.x + x];
+                        // Where everything around is transparent there is no blurred color to
+                        // push away from, so the pixel is kept.
+                        boolean blurred = a > 0;
+                        a = p >>> 24;
+                        r = blurred ? sharpen((p >> 16) & 0xFF, r) : (p >> 16) & 0xFF;
+                        g = blurred ? sharpen((p >> 8) & 0xFF, g) : (p >> 8) & 0xFF;
+                        b = blurred ? sharpen(p & 0xFF, b) : p & 0xFF;
+                    }
+                    dst[out + x] = a << 24 | r << 16 | g << 8 | b;
+                }
+            }
+        }
+
+        private static int unpremultiply(int value, int alpha) {
+            return alpha == 0 ? 0 : Math.min(255, (value * 255 + alpha / 2) / alpha);
+        }
+
+        private int sharpen(int original, int blurred) {
+            int value = original + (original - blurred) * sharpenAmount / 100;
+            return value < 0 ? 0 : value > 255 ? 255 : value;
+        }
+    }
+
+    /**
+     * The GrayscaleFilter class replaces each color with its luma (ITU-R BT.601 weights),
+     * keeping alpha.
+     */
+static class GrayscaleFilter extends ImageFilter {
+
+        @Override
+        String getName() {
+            return "Grayscale";
+        }
+
+        @Override
+        Object[] getParameters() {
+            return new Object[0];
+        }
+
+        @Override
+        void apply(int[] src, int srcWidth, int srcHeight, Rectangle area, int[] dst, int dstOffset, int dstScan) {
+            for (int y = 0; y < area.height; y++) {
+                int in = (area.y + y) * srcWidth + area.x;
+                int out = dstOffset + y * dstScan;
+                for (int x = 0; x < area.width; x++) {
+                    int p = src[in + x];
+                    int luma = (((p >> 16) & 0xFF) * 77 + ((p >> 8) & 0xFF) * 150 + (p & 0xFF) * 29) >> 8;
+                    dst[out + x] = (p & 0xFF000000) | luma << 16 | luma << 8 | luma;
+                }
+            }
+        }
+    }
+
+    /**
+     * The LevelsFilter class remaps the input range inputBlack..inputWhite to
+     * outputBlack..outputWhite with a gamma correction in between, through a lookup table shared
+     * by the three color channels.
+     */
+static class LevelsFilter extends ImageFilter {
+        private final int inputBlack;
+        private final int inputWhite;
+        private final double gamma;
+        private final int outputBlack;
+        private final int outputWhite;
+        private final int[] table = new int[256];
+
+        LevelsFilter(int inputBlack, int inputWhite, double gamma, int outputBlack, int outputWhite) {
+            this.inputBlack = inputBlack;
+            this.inputWhite = Math.max(inputBlack + 1, inputWhite);
+            this.gamma = gamma > 0 ? gamma : 1;
+            this.outputBlack = outputBlack;
+            this.outputWhite = outputWhite;
+            for (int i = 0; i < 256; i++) {
+                double level = Math.min(1, Math.max(0, (i - inputBlack) / (double) (this.inputWhite - inputBlack)));
+                level = Math.pow(level, 1 / this.gamma);
+                int value = (int) Math.round(outputBlack + level * (outputWhite - outputBlack));
+                table[i] = Math.max(0, Math.min(255, value));
+            }
+        }
+
+        @Override
+        String getName() {
+            return "Levels";
+        }
+
+        @Override
+        Object[] getParameters() {
+            return new Object[] { inputBlack, inputWhite, gamma, outputBlack, outputWhite };
+        }
+
+        @Override
+        void apply(int[] src, int srcWidth, int srcHeight, Rectangle area, int[] dst, int dstOffset, int dstScan) {
+            for (int y = 0; y < area.height; y++) {
+                int in = (area.y + y) * srcWidth + area.x;
+                int out = dstOffset + y * dstScan;
+                for (int x = 0; x < area.width; x++) {
+                    int p = src[in + x];
+                    dst[out + x] = (p & 0xFF000000) | table[(p >> 16) & 0xFF] << 16 | table[(p >> 8) & 0xFF] << 8
+                            | table[p & 0xFF];
+                }
+            }
+        }
+    }
+
+    /**
+     * The FilterPipeline class applies an ImageFilter to a region of the canvas without touching
+     * the canvas itself. The constructor copies the region and the filter's halo around it; run
+     * then splits the region into tiles, filters them on a ForkJoinPool and writes them into an
+     * output image the size of the region, reporting each finished tile so that it can be shown
+     * as a preview. The caller copies the output into the canvas once all tiles are done.
+     */
+static class FilterPipeline {
+        static final int TILE_SIZE = 128;
+        private static final ForkJoinPool POOL = new ForkJoinPool();
+
+        private final ImageFilter filter;
+        private final Rectangle region;
+        private final Rectangle padded;
+        private final int[] snapshot;
+        private final BufferedImage output;
+        private long elapsedNanos;
+
+        /**
+         * Copies the pixels the filter needs from the source. Must run on the thread that owns
+         * the source image.
+         */
+        FilterPipeline(ImageFilter filter, BufferedImage source, Rectangle region) {
+            this.filter = filter;
+            this.region = new Rectangle(region);
+            Rectangle grown = new Rectangle(region);
+            grown.grow(filter.getHalo(), filter.getHalo());
+            padded = grown.intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+            int[] pixels = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+            snapshot = new int[padded.width * padded.height];
+            for (int y = 0; y < padded.height; y++) {
+                System.arraycopy(pixels, (padded.y + y) * source.getWidth() + padded.x, snapshot, y * padded.width,
+                        padded.width);
+            }
+            output = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        ImageFilter getFilter() {
+            return filter;
+        }
+
+        Rectangle getRegion() {
+            return region;
+        }
+
+        /**
+         * Returns the filtered region. Tiles that have not been filtered yet are transparent.
+         */
+        BufferedImage getOutput() {
+            return output;
+        }
+
+        long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        double getMegapixelsPerSecond() {
+            return elapsedNanos == 0 ? 0 : region.width * (double) region.height * 1e3 / elapsedNanos;
+        }
+
+        /**
+         * Filters every tile and waits for all of them. The listener, if any, is called from the
+         * pool threads with the bounds, in canvas coordinates, of each finished tile.
+         */
+        void run(Consumer<Rectangle> tileListener) {
+            List<Rectangle> tiles = new ArrayList<>();
+            for (int y = 0; y < region.height; y += TILE_SIZE) {
+                for (int x = 0; x < region.width; x += TILE_SIZE) {
+                    tiles.add(new Rectangle(x, y, Math.min(TILE_SIZE, region.width - x),
+                            Math.min(TILE_SIZE, region.height - y)));
+                }
+            }
+            int[] dst = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+            long start = System.nanoTime();
+            POOL.invoke(new TileTask(tiles, 0, tiles.size(), dst, tileListener));
+            elapsedNanos = System.nanoTime() - start;
+        }
+
+        /**
+         * Splits a range of tiles in half until a single tile is left, then filters it.
+         */
+        private class TileTask extends RecursiveAction {
+            private final List<Rectangle> tiles;
+            private final int from;
+            private final int to;
+            private final int[] dst;
+            private final Consumer<Rectangle> tileListener;
+
+            TileTask(List<Rectangle> tiles, int from, int to, int[] dst, Consumer<Rectangle> tileListener) {
+                this.tiles = tiles;
+                this.from = from;
+                this.to = to;
+                this.dst = dst;
+                this.tileListener = tileListener;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > 1) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new TileTask(tiles, from, middle, dst, tileListener),
+                            new TileTask(tiles, middle, to, dst, tileListener));
+                    return;
+                }
+                Rectangle tile = tiles.get(from);
+                Rectangle area = new Rectangle(region.x - padded.x + tile.x, region.y - padded.y + tile.y, tile.width,
+                        tile.height);
+                filter.apply(snapshot, padded.width, padded.height, area, dst, tile.y * region.width + tile.x,
+                        region.width);
+                if (tileListener != null) {
+                    tileListener.accept(new Rectangle(region.x + tile.x, region.y + tile.y, tile.width, tile.height));
+                }
+            }
+        }
+    }
+
+    /**
+     * The FilterBenchmark class measures the throughput of each filter, in megapixels per
+     * second, on a noisy canvas. Run it with: java Canvas$FilterBenchmark [size]
+     */
+static class FilterBenchmark {
+
+        public static void main(String[] args) {
+            int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+            BufferedImage canvas = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            int[] pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+            Random random = new Random(1);
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+            ImageFilter[] filters = { new ConvolutionFilter(3, 0), new ConvolutionFilter(20, 0),
+                    new ConvolutionFilter(2, 150), new GrayscaleFilter(), new LevelsFilter(20, 235, 1.2, 0, 255) };
+            Rectangle region = new Rectangle(0, 0, size, size);
+            System.out.printf("%d x %d canvas, %d worker threads%n", size, size, FilterPipeline.POOL.getParallelism());
+            for (ImageFilter filter : filters) {
+                new FilterPipeline(filter, canvas, region).run(null);
+                FilterPipeline pipeline = new FilterPipeline(filter, canvas, region);
+                pipeline.run(null);
+                System.out.printf("%-10s %-10s %8.1f ms %10.1f MP/s%n", filter.getName(),
+                        Arrays.toString(filter.getParameters()), pipeline.getElapsedNanos() / 1e6,
+                        pipeline.getMegapixelsPerSecond());
+            }
+        }
+    }
+
+    /**
+     * The ExportTarget class describes one file of an export set: its format, its size (a scale
+     * of the canvas, or a maximum width for thumbnails) and the suffix added to the base name.
+     */
+static class ExportTarget {
+        static final int THUMBNAIL_WIDTH = 160;
+
+        final String suffix;
+        final String format;
+        final double scale;
+        final int maxWidth;
+        final float quality;
+
+        private ExportTarget(String suffix, String format, double scale, int maxWidth, float quality) {
+            this.suffix = suffix;
+            this.format = format;
+            this.scale = scale;
+            this.maxWidth = maxWidth;
+            this.quality = quality;
+        }
+
+        static ExportTarget scaled(String suffix, String format, double scale, float quality) {
+            return new ExportTarget(suffix, format, scale, 0, quality);
+        }
+
+        static ExportTarget fitted(String suffix, String format, int maxWidth) {
+            return new ExportTarget(suffix, format, 1, maxWidth, 0.85f);
+        }
+
+        /**
+         * The default export set: a full-size PNG, a JPEG for email, a half-size PNG for reports
+         * and a thumbnail.
+         */
+        static List<ExportTarget> defaults() {
+            return Arrays.asList(scaled("", "png", 1, 1f), scaled("", "jpg", 1, 0.85f), scaled("-half", "png", 0.5, 1f),
+                    fitted("-thumb", "png", THUMBNAIL_WIDTH));
+        }
+
+        Dimension sizeFor(int width, int height) {
+            double factor = maxWidth > 0 ? Math.min(1, maxWidth / (double) width) : scale;
+            return new Dimension(Math.max(1, (int) Math.round(width * factor)),
+                    Math.max(1, (int) Math.round(height * factor)));
+        }
+
+        File fileFor(File base) {
+            return new File(base.getPath() + suffix + "." + format);
+        }
+    }
+
+    /**
+     * The ExportPipeline class writes one snapshot of the canvas to several files at once. Each
+     * target is resized and encoded on its own thread, straight to its file. Smaller sizes are
+     * derived from a chain of half-size levels that is computed once and shared: every level is
+     * a 2x2 average of the level above, and a target uses the smallest level that is still at
+     * least its size, finishing with one bilinear resize when its size is not a level itself.
+     */
+static class ExportPipeline {
+        private final BufferedImage snapshot;
+        // The snapshot halved once, twice and so on, keyed by the number of halvings; added as
+        // targets ask for them.
+        private final Map<Integer, CompletableFuture<BufferedImage>> levels = new ConcurrentHashMap<>();
+
+        /**
+         * The outcome of one target: where it was written, at what size, how long resizing and
+         * encoding took, and how many bytes were written.
+         */
+        static class Report {
+            File file;
+            int width;
+            int height;
+            long resizeNanos;
+            long encodeNanos;
+            long bytes;
+            Exception error;
+
+            @Override
+            public String toString() {
+                if (error != null) {
+                    return String.format("%s: failed (%s)", file.getName(), error.getMessage());
+                }
+                return String.format("%s: %d x %d, resize %.0f ms, encode %.0f ms, %,d KB", file.getName(), width,
+                        height, resizeNanos / 1e6, encodeNanos / 1e6, bytes / 1024);
+            }
+        }
+
+        /**
+         * Copies the source image. Must run on the thread that owns the source.
+         */
+        ExportPipeline(BufferedImage source) {
+            snapshot = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            int[] from = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+            int[] to = ((DataBufferInt) snapshot.getRaster().getDataBuffer()).getData();
+            System.arraycopy(from, 0, to, 0, to.length);
+        }
+
+        /**
+         * Writes every target next to the base file (the base name plus the target's suffix and
+         * extension) and returns one report per target, in order. Blocks until all are written.
+         */
+        List<Report> export(File base, List<ExportTarget> targets) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(targets.size(), Runtime.getRuntime().availableProcessors()),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "canvas-export");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            try {
+                List<CompletableFuture<Report>> pending = new ArrayList<>();
+                for (ExportTarget target : targets) {
+                    pending.add(CompletableFuture.supplyAsync(() -> write(base, target), executor));
+                }
+                List<Report> reports = new ArrayList<>();
+                for (CompletableFuture<Report> report : pending) {
+                    reports.add(report.join());
+                }
+                return reports;
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        private Report write(File base, ExportTarget target) {
+            Report report = new Report();
+            report.file = target.fileFor(base);
+            try {
+                long start = System.nanoTime();
+                Dimension size = target.sizeFor(snapshot.getWidth(), snapshot.getHeight());
+                BufferedImage image = resize(size.width, size.height);
+                if (target.format.equals("jpg")) {
+                    image = flatten(image);
+                }
+                report.width = image.getWidth();
+                report.height = image.getHeight();
+                report.resizeNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                encode(image, target, report.file);
+                report.encodeNanos = System.nanoTime() - start;
+                report.bytes = report.file.length();
+            } catch (IOException | RuntimeException ex) {
+                report.error = ex;
+            }
+            return report;
+        }
+
+        /**
+         * Returns the snapshot at the given size, starting from the smallest shared level that is
+         * at least that large.
+         */
+        private BufferedImage resize(int width, int height) {
+            int depth = 0;
+            int levelWidth = snapshot.getWidth();
+            int levelHeight = snapshot.getHeight();
+            while (levelWidth / 2 >= width && levelHeight / 2 >= height) {
+                levelWidth /= 2;
+                levelHeight /= 2;
+                depth++;
+            }
+            BufferedImage level = level(depth);
+            if (level.getWidth() == width && level.getHeight() == height) {
+                return level;
+            }
+            BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = resized.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(level, 0, 0, width, height, null);
+            g.dispose();
+            return resized;
+        }
+
+        /**
+         * Returns the snapshot halved depth times. The first target to need a level computes
+         * it, and any missing levels above it; only targets needing that same level wait for
+         * it, so the full-size targets never wait.
+         */
+        private BufferedImage level(int depth) {
+            if (depth == 0) {
+                return snapshot;
+            }
+            CompletableFuture<BufferedImage> claim = new CompletableFuture<>();
+            CompletableFuture<BufferedImage> existing = levels.putIfAbsent(depth, claim);
+            if (existing != null) {
+                return existing.join();
+            }
+            try {
+                claim.complete(halve(level(depth - 1)));
+            } catch (RuntimeException ex) {
+                claim.completeExceptionally(ex);
+                throw ex;
+            }
+            return claim.join();
+        }
+
+        /**
+         * Halves an image by averaging each 2x2 block; an odd last row or column is averaged
+         * with itself. Colors are weighted by alpha, so transparent pixels do not tint their
+         * neighbours.
+         */
+        static BufferedImage halve(BufferedImage source) {
+            int width = source.getWidth();
+            int height = source.getHeight();
+            int halfWidth = Math.max(1, width / 2);
+            int halfHeight = Math.max(1, height / 2);
+            BufferedImage half = new BufferedImage(halfWidth, halfHeight, BufferedImage.TYPE_INT_ARGB);
+            int[] in = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+            int[] out = ((DataBufferInt) half.getRaster().getDataBuffer()).getData();
+            IntStream.range(0, halfHeight).parallel().forEach(y -> {
+                int row0 = Math.min(y * 2, height - 1) * width;
+                int row1 = Math.min(y * 2 + 1, height - 1) * width;
+                for (int x = 0; x < halfWidth; x++) {
+                    int x0 = Math.min(x * 2, width - 1);
+                    int x1 = Math.min(x * 2 + 1, width - 1);
+                    int p0 = in[row0 + x0];
+                    int p1 = in[row0 + x1];
+                    int p2 = in[row1 + x0];
+                    int p3 = in[row1 + x1];
+                    int alpha = (p0 >>> 24) + (p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24);
+                    int pixel = ((alpha + 2) >> 2) << 24;
+                    if (alpha > 0) {
+                        for (int shift = 0; shift < 24; shift += 8) {
+                            int sum = (p0 >>> shift & 0xFF) * (p0 >>> 24) + (p1 >>> shift & 0xFF) * (p1 >>> 24)
+                                    + (p2 >>> shift & 0xFF) * (p2 >>> 24) + (p3 >>> shift & 0xFF) * (p3 >>> 24);
+                            pixel |= ((sum + alpha / 2) / alpha) << shift;
+                        }
+                    }
+                    out[y * halfWidth + x] = pixel;
+                }
+            });
+            return half;
+        }
+
+        /**
+         * Composites an image over white, for formats without alpha.
+         */
+        private static BufferedImage flatten(BufferedImage image) {
+            BufferedImage flat = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = flat.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            return flat;
+        }
+
+        /**
+         * Encodes the image directly into the file, without buffering the encoded bytes in
+         * memory first.
+         */
+        private static void encode(BufferedImage image, ExportTarget target, File file) throws IOException {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName(target.format).next();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (target.format.equals("jpg")) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(target.quality);
+            }
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw");
+                    ImageOutputStream stream = new FileImageOutputStream(out)) {
+                out.setLength(0);
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+        }
+
+        /**
+         * Exports image or project files from the command line with the default targets.
+         * Run it with: java Canvas$ExportPipeline file...
+         */
+        public static void main(String[] args) throws IOException {
+            System.setProperty("java.awt.headless", "true");
+            if (args.length == 0) {
+                System.err.println("Usage: java Canvas$ExportPipeline file...");
+                System.exit(2);
+            }
+            for (String name : args) {
+                File file = new File(name);
+                BufferedImage image = readCanvas(file);
+                int dot = file.getName().lastIndexOf('.');
+                File base = new File(file.getParentFile(),
+                        (dot > 0 ? file.getName().substring(0, dot) : file.getName()) + "-export");
+                long start = System.nanoTime();
+                List<Report> reports = new ExportPipeline(image).export(base, ExportTarget.defaults());
+                long wall = System.nanoTime() - start;
+                long sum = 0;
+                for (Report report : reports) {
+                    System.out.println(report);
+                    sum += report.resizeNanos + report.encodeNanos;
+                }
+                System.out.printf("%s: %.0f ms wall, %.0f ms summed over targets%n", file.getName(), wall / 1e6,
+                        sum / 1e6);
+            }
+        }
+
+        private static BufferedImage readCanvas(File file) throws IOException {
+            if (file.getName().toLowerCase().endsWith(".canvas")) {
+                ProjectFile project = ProjectFile.open(file);
+                BufferedImage image = new BufferedImage(project.getWidth(), project.getHeight(),
+                        BufferedImage.TYPE_INT_ARGB);
+                try {
+                    project.load(new Rectangle(0, 0, project.getWidth(), project.getHeight()), image);
+                } finally {
+                    project.close();
+                }
+                return image;
+            }
+            BufferedImage read = ImageIO.read(file);
+            if (read == null) {
+                throw new IOException("Unable to read " + file);
+            }
+            BufferedImage image = new BufferedImage(read.getWidth(), read.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = image.createGraphics();
+            g.drawImage(read, 0, 0, null);
+            g.dispose();
+            return image;
+        }
+    }
+
+    /**
+     * The HistoryEntry class is one step of the undo and redo history: the pixels of a region of
+     * the canvas as they were before an action. Strokes and pastes record only the region they
+     * changed and moves record their source and destination as two parts of one entry; text,
+     * shapes and clearing record the whole canvas. Restoring an entry returns the entry that
+     * reverses it, so the same class serves both stacks.
+     */
+static class HistoryEntry {
+        final Rectangle region;
+        final BufferedImage pixels;
+        // The next part of a step that changed more than one region, or null.
+        final HistoryEntry next;
+
+        HistoryEntry(Rectangle region, BufferedImage pixels) {
+            this(region, pixels, null);
+        }
+
+        HistoryEntry(Rectangle region, BufferedImage pixels, HistoryEntry next) {
+            this.region = region;
+            this.pixels = pixels;
+            this.next = next;
+        }
+
+        /**
+         * Captures two regions as the parts of one entry.
+         */
+        static HistoryEntry capture(BufferedImage source, Rectangle first, Rectangle second) {
+            HistoryEntry part = capture(source, first);
+            return new HistoryEntry(part.region, part.pixels, capture(source, second));
+        }
+
+        /**
+         * Captures any number of regions, of which there must be at least one, as the parts of
+         * one entry.
+         */
+        static HistoryEntry capture(BufferedImage source, List<Rectangle> regions) {
+            HistoryEntry entry = null;
+            for (int i = regions.size() - 1; i >= 0; i--) {
+                HistoryEntry part = capture(source, regions.get(i));
+                entry = new HistoryEntry(part.region, part.pixels, entry);
+            }
+            return entry;
+        }
+
+        /**
+         * Returns the memory held by the pixels of all parts of this entry.
+         */
+        long getBytes() {
+            long bytes = 4L * pixels.getWidth() * pixels.getHeight();
+            return next == null ? bytes : bytes + next.getBytes();
+        }
+
+        /**
+         * Returns the area covered by all parts of this entry.
+         */
+        Rectangle getBounds() {
+            return next == null ? region : region.union(next.getBounds());
+        }
+
+        static HistoryEntry capture(BufferedImage source, Rectangle region) {
+            Rectangle clipped = region.intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+            BufferedImage pixels = new BufferedImage(Math.max(1, clipped.width), Math.max(1, clipped.height),
+                    BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = pixels.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(source, -clipped.x, -clipped.y, null);
+            g.dispose();
+            return new HistoryEntry(clipped, pixels);
+        }
+
+        /**
+         * Writes this entry's pixels back into the target and returns an entry holding the pixels
+         * it replaced.
+         */
+        HistoryEntry restore(BufferedImage target) {
+            // Every part is captured before any is written, since the parts of a move may overlap.
+            HistoryEntry inverse = captureParts(target);
+            Graphics2D g = target.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            for (HistoryEntry part = this; part != null; part = part.next) {
+                g.drawImage(part.pixels, part.region.x, part.region.y, null);
+            }
+            g.dispose();
+            return inverse;
+        }
+
+        private HistoryEntry captureParts(BufferedImage target) {
+            HistoryEntry part = capture(target, region);
+            return next == null ? part : new HistoryEntry(part.region, part.pixels, next.captureParts(target));
+        }
+
+        /**
+         * Takes over every pixel that differs between before, a region as it was before someone
+         * else changed it, and the canvas, so that restoring this entry keeps that change.
+         * Returns true if any pixel of this entry was updated.
+         */
+        boolean rebase(HistoryEntry before, BufferedImage canvas) {
+            boolean changed = false;
+            for (HistoryEntry part = this; part != null; part = part.next) {
+                for (HistoryEntry changedPart = before; changedPart != null; changedPart = changedPart.next) {
+                    changed |= part.rebasePart(changedPart, canvas);
+                }
+            }
+            return changed;
+        }
+
+        private boolean rebasePart(HistoryEntry before, BufferedImage canvas) {
+            Rectangle overlap = region.intersection(before.region);
+            if (overlap.isEmpty()) {
+                return false;
+            }
+            int[] current = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+            int[] old = ((DataBufferInt) before.pixels.getRaster().getDataBuffer()).getData();
+            int[] own = ((DataBufferInt) pixels.getRaster().getDataBuffer()).getData();
+            int oldScan = before.pixels.getWidth();
+            int ownScan = pixels.getWidth();
+            boolean changed = false;
+            for (int y = overlap.y; y < overlap.y + overlap.height; y++) {
+                for (int x = overlap.x; x < overlap.x + overlap.width; x++) {
+                    int value = current[y * canvas.getWidth() + x];
+                    if (value != old[(y - before.region.y) * oldScan + x - before.region.x]) {
+                        own[(y - region.y) * ownScan + x - region.x] = value;
+                        changed = true;
+                    }
+                }
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * The StrokeSnapshot class holds the pixels a stroke drawn straight into the canvas is about
+     * to change, as they were before the stroke. The canvas is divided into tiles and each tile is
+     * copied the first time the stroke reaches it, so a stroke only copies the tiles it crosses.
+     */
+static class StrokeSnapshot {
+        static final int TILE_SIZE = 64;
+
+        private final BufferedImage canvas;
+        private final int columns;
+        private final int rows;
+        private final int[][] tiles;
+
+        StrokeSnapshot(BufferedImage canvas) {
+            this.canvas = canvas;
+            columns = (canvas.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+            rows = (canvas.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+            tiles = new int[columns * rows][];
+        }
+
+        /**
+         * Copies the tiles under the region that have not been copied yet. Must be called before
+         * the stroke draws into the region.
+         */
+        void cover(Rectangle region) {
+            Rectangle clipped = region.intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+            if (clipped.isEmpty()) {
+                return;
+            }
+            int[] pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+            int scan = canvas.getWidth();
+            for (int row = clipped.y / TILE_SIZE; row <= (clipped.y + clipped.height - 1) / TILE_SIZE; row++) {
+                for (int column = clipped.x / TILE_SIZE; column <= (clipped.x + clipped.width - 1) / TILE_SIZE;
+                        column++) {
+                    int tile = row * columns + column;
+                    if (tiles[tile] != null) {
+                        continue;
+                    }
+                    int x = column * TILE_SIZE;
+                    int y = row * TILE_SIZE;
+                    int width = Math.min(TILE_SIZE, canvas.getWidth() - x);
+                    int height = Math.min(TILE_SIZE, canvas.getHeight() - y);
+                    int[] copy = new int[TILE_SIZE * TILE_SIZE];
+                    for (int line = 0; line < height; line++) {
+                        System.arraycopy(pixels, (y + line) * scan + x, copy, line * TILE_SIZE, width);
+                    }
+                    tiles[tile] = copy;
+                }
+            }
+        }
+
+        /**
+         * Takes over a change someone else made under the tiles copied so far, as
+         * HistoryEntry.rebase does for finished strokes.
+         */
+        void rebase(HistoryEntry before) {
+            for (HistoryEntry part = before; part != null; part = part.next) {
+                rebasePart(part);
+            }
+        }
+
+        private void rebasePart(HistoryEntry before) {
+            Rectangle clipped = before.region.intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+            if (clipped.isEmpty()) {
+                return;
+            }
+            int[] current = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+            int[] old = ((DataBufferInt) before.pixels.getRaster().getDataBuffer()).getData();
+            int oldScan = before.pixels.getWidth();
+            for (int row = clipped.y / TILE_SIZE; row * TILE_SIZE < clipped.y + clipped.height; row++) {
+                for (int column = clipped.x / TILE_SIZE; column * TILE_SIZE < clipped.x + clipped.width; column++) {
+                    int[] tile = tiles[row * columns + column];
+                    if (tile == null) {
+                        continue;
+                    }
+                    int x0 = Math.max(clipped.x, column * TILE_SIZE);
+                    int x1 = Math.min(clipped.x + clipped.width, (column + 1) * TILE_SIZE);
+                    int y1 = Math.min(clipped.y + clipped.height, (row + 1) * TILE_SIZE);
+                    for (int y = Math.max(clipped.y, row * TILE_SIZE); y < y1; y++) {
+                        for (int x = x0; x < x1; x++) {
+                            int value = current[y * canvas.getWidth() + x];
+                            if (value != old[(y - before.region.y) * oldScan + x - before.region.x]) {
+                                tile[y % TILE_SIZE * TILE_SIZE + x % TILE_SIZE] = value;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns a history entry holding the region as it was before the stroke. Every part of
+         * the region the stroke changed must have been covered.
+         */
+        HistoryEntry toEntry(Rectangle region) {
+            Rectangle clipped = region.intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+            BufferedImage before = new BufferedImage(Math.max(1, clipped.width), Math.max(1, clipped.height),
+                    BufferedImage.TYPE_INT_ARGB);
+            if (clipped.isEmpty()) {
+                return new HistoryEntry(clipped, before);
+            }
+            int[] pixels = ((DataBufferInt) before.getRaster().getDataBuffer()).getData();
+            int[] current = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+            for (int row = clipped.y / TILE_SIZE; row <= (clipped.y + clipped.height - 1) / TILE_SIZE; row++) {
+                for (int column = clipped.x / TILE_SIZE; column <= (clipped.x + clipped.width - 1) / TILE_SIZE;
+                        column++) {
+                    Rectangle part = clipped.intersection(
+                            new Rectangle(column * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+                    int[] tile = tiles[row * columns + column];
+                    for (int line = 0; line < part.height; line++) {
+                        int target = (part.y - clipped.y + line) * clipped.width + part.x - clipped.x;
+                        // A tile the stroke never reached is unchanged, so the canvas still holds it.
+                        if (tile != null) {
+                            System.arraycopy(tile, (part.y % TILE_SIZE + line) * TILE_SIZE + part.x % TILE_SIZE,
+                                    pixels, target, part.width);
+                        } else {
+                            System.arraycopy(current, (part.y + line) * canvas.getWidth() + part.x, pixels, target,
+                                    part.width);
+                        }
+                    }
+                }
+            }
+            return new HistoryEntry(clipped, before);
+        }
+    }
+
+    /**
+     * The ProjectFile class reads and writes the native project format, which stores the canvas
+     * as independently compressed tiles so that a save only writes the tiles that changed and
+     * an open only decodes the tiles that are needed. The layout is:
+     *
+     * header   64 bytes: magic, version, width, height, tile size, offset of the tile index and
+     *          offset and length of the history section
+     * tiles    deflated rows of ARGB pixels, each pixel stored as its difference from the pixel to
+     *          its left
+     * entries  history entries, each a count of parts followed by the region and the deflated
+     *          pixels of each part
+     * history  optional counts of undo and redo entries followed by the offset (long) and
+     *          length (int) of each entry
+     * index    16 bytes per tile in row order: offset (long), compressed length (int) and color
+     *          (int). A length of 0 marks a tile of a single color, which is stored in the color
+     *          field; otherwise the field holds the CRC-32 of the compressed tile.
+     *
+     * A save never overwrites anything the header points at. The changed tiles, the history
+     * entries not written before, the history and a new index are appended to the file and
+     * forced to disk, and only then is the header, a single sector, rewritten to point at them;
+     * a crash before that leaves the previous save intact. The space this leaves behind is
+     * reclaimed by writing the whole project to a temporary file that is renamed over the old
+     * one.
+     *
+     * Every tile is checked against its checksum when a file is opened, and the file stays
+     * open until all of its tiles have been decoded.
+     */
+static class ProjectFile {
+        static final int MAGIC = 0x434E5650;
+        static final int VERSION = 2;
+        static final int TILE_SIZE = 256;
+        static final int HEADER_SIZE = 64;
+        static final int INDEX_ENTRY_SIZE = 16;
+        // Region, pixel size and compressed length of one part of a history entry.
+        private static final int HISTORY_PART_SIZE = 28;
+        // Offset and length of one entry in the history section.
+        private static final int HISTORY_REFERENCE_SIZE = 12;
+
+        private final File file;
+        private final int width;
+        private final int height;
+        private final int columns;
+        private final int rows;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final int[] colors;
+        private long indexOffset;
+        private long historyOffset;
+        private int historyLength;
+        // Bytes of the entries the history section points at.
+        private long historyEntryBytes;
+        // Where the next save appends; everything before it is either live or abandoned.
+        private long end;
+
+        // Open while tiles remain to be decoded.
+        private FileChannel source;
+        private final BitSet pending = new BitSet();
+        private final BitSet dirty = new BitSet();
+        // The offset and length of each history entry already written to the file, so that a
+        // save only appends the entries that are new. An entry changes after it is written when
+        // a shared session rebases it, and historyChanged then drops it from here. Entries are
+        // compared by identity and dropped with the history.
+        private final Map<HistoryEntry, long[]> writtenHistory = new WeakHashMap<>();
+
+        private ProjectFile(File file, int width, int height) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+            rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            offsets = new long[columns * rows];
+            lengths = new int[columns * rows];
+            colors = new int[columns * rows];
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Reads the header and tile index of a project and checks every tile against its
+         * checksum, keeping the file open for decoding. No tile is decoded. Every offset and
+         * length is checked against the size of the file before it is used.
+         */
+        static ProjectFile open(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    throw new IOException("Not a canvas project: " + file);
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(channel, header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    throw new IOException("Not a canvas project: " + file);
+                }
+                int version = header.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported project version " + version);
+                }
+                int width = header.getInt();
+                int height = header.getInt();
+                if (header.getInt() != TILE_SIZE || width <= 0 || height <= 0) {
+                    throw new IOException("Corrupt project header: " + file);
+                }
+                if ((long) width * height > Integer.MAX_VALUE || size > Integer.MAX_VALUE) {
+                    throw new IOException("Project is too large to open: " + file);
+                }
+                long indexOffset = header.getLong();
+                long historyOffset = header.getLong();
+                int historyLength = header.getInt();
+                long tileCount = (long) ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+                checkSection(file, "tile index", indexOffset, tileCount * INDEX_ENTRY_SIZE, size);
+                checkSection(file, "history", historyOffset, historyLength, size);
+
+                ProjectFile project = new ProjectFile(file, width, height);
+                project.indexOffset = indexOffset;
+                project.historyOffset = historyOffset;
+                project.historyLength = historyLength;
+                project.end = size;
+                ByteBuffer index = ByteBuffer.allocate(project.offsets.length * INDEX_ENTRY_SIZE);
+                readFully(channel, index, indexOffset);
+                index.flip();
+                for (int tile = 0; tile < project.offsets.length; tile++) {
+                    project.offsets[tile] = index.getLong();
+                    project.lengths[tile] = index.getInt();
+                    project.colors[tile] = index.getInt();
+                    if (project.lengths[tile] != 0) {
+                        checkSection(file, "tile " + tile, project.offsets[tile], project.lengths[tile], size);
+                    }
+                }
+                project.verifyTiles(channel);
+                project.source = channel;
+                project.pending.set(0, project.offsets.length);
+                return project;
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        private void verifyTiles(FileChannel channel) throws IOException {
+            int longest = 0;
+            for (int length : lengths) {
+                longest = Math.max(longest, length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(longest);
+            CRC32 crc = new CRC32();
+            for (int tile = 0; tile < offsets.length; tile++) {
+                if (lengths[tile] == 0) {
+                    continue;
+                }
+                buffer.clear().limit(lengths[tile]);
+                readFully(channel, buffer, offsets[tile]);
+                crc.reset();
+                crc.update(buffer.array(), 0, lengths[tile]);
+                if ((int) crc.getValue() != colors[tile]) {
+                    throw new IOException("Corrupt project tile " + tile + " at " + offsets[tile] + ": " + file);
+                }
+            }
+        }
+
+        /**
+         * Closes the file if tiles remain to be decoded; they can no longer be loaded after
+         * this. Must be called before the file is replaced.
+         */
+        void close() {
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException ex) {
+                    // Nothing was written through the channel, so nothing is lost.
+                }
+                source = null;
+            }
+        }
+
+        private static void checkSection(File file, String name, long offset, long length, long size)
+                throws IOException {
+            if (offset < HEADER_SIZE || offset > size || length < 0 || length > size - offset) {
+                throw new IOException("Corrupt project " + name + " at " + offset + " (" + length
+                        + " bytes) in a file of " + size + " bytes: " + file);
+            }
+        }
+
+        /**
+         * Writes a complete project to a temporary file and renames it over the given file, so
+         * that the file is replaced either entirely or not at all. Any project still open on
+         * the file must be closed first. The returned project has no pending or dirty tiles.
+         */
+        static ProjectFile write(File file, BufferedImage image, List<HistoryEntry> undo, List<HistoryEntry> redo,
+                boolean includeHistory) throws IOException {
+            ProjectFile project = new ProjectFile(file, image.getWidth(), image.getHeight());
+            byte[][] tiles = project.encodeTiles(image, allTiles(project.offsets.length));
+            File temporary = new File(file.getAbsolutePath() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                project.end = HEADER_SIZE;
+                for (int tile = 0; tile < tiles.length; tile++) {
+                    project.place(channel, tile, tiles[tile]);
+                }
+                project.commit(channel, undo, redo, includeHistory);
+            }
+            try {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return project;
+        }
+
+        /**
+         * Appends the dirty tiles, the history and a new index to the project and then points
+         * the header at them. Tiles that were never decoded cannot have changed and are left as
+         * they are. If the save fails the tiles stay dirty and the file still holds the
+         * previous save.
+         */
+        void save(BufferedImage image, List<HistoryEntry> undo, List<HistoryEntry> redo, boolean includeHistory)
+                throws IOException {
+            dirty.andNot(pending);
+            int[] changed = dirty.stream().toArray();
+            byte[][] tiles = encodeTiles(image, changed);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                end = Math.max(end, channel.size());
+                for (int i = 0; i < changed.length; i++) {
+                    place(channel, changed[i], tiles[i]);
+                }
+                commit(channel, undo, redo, includeHistory);
+            }
+            dirty.clear();
+        }
+
+        /**
+         * Returns true when abandoned tiles, histories and indexes take up more space than the
+         * live ones, so that a full rewrite is worthwhile.
+         */
+        boolean needsCompaction() {
+            long live = HEADER_SIZE + (long) offsets.length * INDEX_ENTRY_SIZE + historyLength + historyEntryBytes;
+            for (int tile = 0; tile < lengths.length; tile++) {
+                live += lengths[tile];
+            }
+            return end > live * 2 + (1 << 20);
+        }
+
+        void markDirty(Rectangle region) {
+            forEachTile(region, dirty::set);
+        }
+
+        boolean hasPendingTiles() {
+            return !pending.isEmpty();
+        }
+
+        /**
+         * Decodes the tiles under the region that have not been decoded yet into the target
+         * and returns their bounds, or null if there were none. The file is closed once every
+         * tile has been decoded.
+         */
+        Rectangle load(Rectangle region, BufferedImage target) throws IOException {
+            if (pending.isEmpty()) {
+                return null;
+            }
+            BitSet tiles = new BitSet();
+            forEachTile(region, tiles::set);
+            tiles.and(pending);
+            Rectangle loaded = null;
+            int[] pixels = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+            Inflater inflater = new Inflater();
+            try {
+                for (int tile = tiles.nextSetBit(0); tile >= 0; tile = tiles.nextSetBit(tile + 1)) {
+                    Rectangle bounds = tileBounds(tile);
+                    decodeTile(tile, bounds, pixels, target.getWidth(), inflater);
+                    pending.clear(tile);
+                    loaded = loaded == null ? bounds : loaded.union(bounds);
+                }
+            } finally {
+                inflater.end();
+            }
+            if (pending.isEmpty()) {
+                close();
+            }
+            return loaded;
+        }
+
+        /**
+         * Reads the history section into the given stacks, bottom entry first. Counts, offsets
+         * and sizes are checked against the canvas, the file and the bytes left in each entry
+         * before anything is allocated for them.
+         */
+        void readHistory(List<HistoryEntry> undo, List<HistoryEntry> redo) throws IOException {
+            historyEntryBytes = 0;
+            if (historyLength == 0) {
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer table = ByteBuffer.allocate(historyLength);
+                readFully(channel, table, historyOffset);
+                table.flip();
+                int undoCount = historyLength < 8 ? -1 : table.getInt();
+                int redoCount = historyLength < 8 ? -1 : table.getInt();
+                if (undoCount < 0 || redoCount < 0
+                        || ((long) undoCount + redoCount) * HISTORY_REFERENCE_SIZE != table.remaining()) {
+                    throw new IOException("Corrupt project history: " + undoCount + " undo and " + redoCount
+                            + " redo entries in " + historyLength + " bytes");
+                }
+                Inflater inflater = new Inflater();
+                try {
+                    for (int i = 0; i < undoCount + redoCount; i++) {
+                        long offset = table.getLong();
+                        int length = table.getInt();
+                        checkSection(file, "history entry " + i, offset, length, size);
+                        byte[] bytes = new byte[length];
+                        readFully(channel, ByteBuffer.wrap(bytes), offset);
+                        HistoryEntry entry = readHistoryEntry(bytes, inflater, i);
+                        writtenHistory.put(entry, new long[] { offset, length });
+                        historyEntryBytes += length;
+                        (i < undoCount ? undo : redo).add(entry);
+                    }
+                } catch (EOFException ex) {
+                    throw new IOException("Truncated project history: " + file, ex);
+                } finally {
+                    inflater.end();
+                }
+            }
+        }
+
+        private HistoryEntry readHistoryEntry(byte[] bytes, Inflater inflater, int index) throws IOException {
+            ByteArrayInputStream source = new ByteArrayInputStream(bytes);
+            DataInputStream in = new DataInputStream(source);
+            int partCount = in.readInt();
+            if (partCount <= 0 || (long) partCount * HISTORY_PART_SIZE > source.available()) {
+                throw new IOException("Corrupt project history entry " + index + ": " + partCount + " parts");
+            }
+            HistoryEntry[] parts = new HistoryEntry[partCount];
+            for (int j = 0; j < partCount; j++) {
+                parts[j] = readHistoryPart(in, source, inflater, index);
+            }
+            HistoryEntry entry = null;
+            for (int j = partCount - 1; j >= 0; j--) {
+                entry = new HistoryEntry(parts[j].region, parts[j].pixels, entry);
+            }
+            return entry;
+        }
+
+        private HistoryEntry readHistoryPart(DataInputStream in, ByteArrayInputStream source, Inflater inflater,
+                int index) throws IOException {
+            Rectangle region = new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            int pixelWidth = in.readInt();
+            int pixelHeight = in.readInt();
+            int length = in.readInt();
+            if (pixelWidth <= 0 || pixelWidth > width || pixelHeight <= 0 || pixelHeight > height
+                    || length < 0 || length > source.available()) {
+                throw new IOException("Corrupt project history entry " + index + ": " + pixelWidth + "x"
+                        + pixelHeight + " pixels in " + length + " bytes");
+            }
+            BufferedImage pixels = new BufferedImage(pixelWidth, pixelHeight, BufferedImage.TYPE_INT_ARGB);
+            byte[] compressed = new byte[length];
+            in.readFully(compressed);
+            int[] data = ((DataBufferInt) pixels.getRaster().getDataBuffer()).getData();
+            inflate(inflater, compressed, data, 0, pixelWidth, pixelWidth, pixelHeight);
+            return new HistoryEntry(region, pixels);
+        }
+
+        private Rectangle tileBounds(int tile) {
+            int x = (tile % columns) * TILE_SIZE;
+            int y = (tile / columns) * TILE_SIZE;
+            return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+        }
+
+        private void forEachTile(Rectangle region, IntConsumer action) {
+            Rectangle clipped = region.intersection(new Rectangle(0, 0, width, height));
+            if (clipped.isEmpty()) {
+                return;
+            }
+            for (int row = clipped.y / TILE_SIZE; row <= (clipped.y + clipped.height - 1) / TILE_SIZE; row++) {
+                for (int column = clipped.x / TILE_SIZE; column <= (clipped.x + clipped.width - 1) / TILE_SIZE;
+                        column++) {
+                    action.accept(row * columns + column);
+                }
+            }
+        }
+
+        private static int[] allTiles(int count) {
+            int[] tiles = new int[count];
+            for (int i = 0; i < count; i++) {
+                tiles[i] = i;
+            }
+            return tiles;
+        }
+
+        /**
+         * Compresses the given tiles in parallel. A tile of a single color is returned as a
+         * four-byte array holding the color.
+         */
+        private byte[][] encodeTiles(BufferedImage image, int[] tiles) {
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int scan = image.getWidth();
+            byte[][] encoded = new byte[tiles.length][];
+            IntStream.range(0, tiles.length).parallel().forEach(i -> {
+                Rectangle bounds = tileBounds(tiles[i]);
+                int start = bounds.y * scan + bounds.x;
+                int color = pixels[start];
+                boolean solid = true;
+                for (int y = 0; y < bounds.height && solid; y++) {
+                    int row = start + y * scan;
+                    for (int x = 0; x < bounds.width; x++) {
+                        if (pixels[row + x] != color) {
+                            solid = false;
+                            break;
+                        }
+                    }
+                }
+                encoded[i] = solid ? ByteBuffer.allocate(4).putInt(color).array()
+                        : deflate(pixels, start, scan, bounds.width, bounds.height);
+            });
+            return encoded;
+        }
+
+        /**
+         * Stores an encoded tile at the end of the file. A tile of a single color is kept in the
+         * index only.
+         */
+        private void place(FileChannel channel, int tile, byte[] data) throws IOException {
+            if (data.length == 4) {
+                offsets[tile] = 0;
+                lengths[tile] = 0;
+                colors[tile] = ByteBuffer.wrap(data).getInt();
+                return;
+            }
+            writeFully(channel, ByteBuffer.wrap(data), end);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            offsets[tile] = end;
+            lengths[tile] = data.length;
+            colors[tile] = (int) crc.getValue();
+            end += data.length;
+        }
+
+        /**
+         * Appends the new history entries, the history and the index, forces them and the
+         * tiles placed before them to disk, and only then rewrites the header to point at them.
+         */
+        private void commit(FileChannel channel, List<HistoryEntry> undo, List<HistoryEntry> redo,
+                boolean includeHistory) throws IOException {
+            writeHistory(channel, undo, redo, includeHistory);
+            writeIndex(channel);
+            channel.force(false);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(TILE_SIZE);
+            header.putLong(indexOffset).putLong(historyOffset).putInt(historyLength);
+            header.rewind();
+            writeFully(channel, header, 0);
+            channel.force(false);
+        }
+
+        /**
+         * Appends the history entries that are not in the file yet, then the history section
+         * pointing at every entry.
+         */
+        private void writeHistory(FileChannel channel, List<HistoryEntry> undo, List<HistoryEntry> redo,
+                boolean includeHistory) throws IOException {
+            historyOffset = end;
+            historyLength = 0;
+            historyEntryBytes = 0;
+            if (!includeHistory || undo.size() + redo.size() == 0) {
+                return;
+            }
+            List<HistoryEntry> entries = new ArrayList<>(undo);
+            entries.addAll(redo);
+            ByteBuffer table = ByteBuffer.allocate(8 + entries.size() * HISTORY_REFERENCE_SIZE);
+            table.putInt(undo.size()).putInt(redo.size());
+            for (HistoryEntry entry : entries) {
+                long[] written = writtenHistory.get(entry);
+                if (written == null) {
+                    byte[] bytes = encodeHistoryEntry(entry);
+                    writeFully(channel, ByteBuffer.wrap(bytes), end);
+                    written = new long[] { end, bytes.length };
+                    writtenHistory.put(entry, written);
+                    end += bytes.length;
+                }
+                table.putLong(written[0]).putInt((int) written[1]);
+                historyEntryBytes += written[1];
+            }
+            table.flip();
+            historyOffset = end;
+            historyLength = table.remaining();
+            writeFully(channel, table, historyOffset);
+            end += historyLength;
+        }
+
+        private static byte[] encodeHistoryEntry(HistoryEntry entry) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int parts = 0;
+            for (HistoryEntry part = entry; part != null; part = part.next) {
+                parts++;
+            }
+            out.writeInt(parts);
+            for (HistoryEntry part = entry; part != null; part = part.next) {
+                int[] pixels = ((DataBufferInt) part.pixels.getRaster().getDataBuffer()).getData();
+                byte[] compressed = deflate(pixels, 0, part.pixels.getWidth(), part.pixels.getWidth(),
+                        part.pixels.getHeight());
+                out.writeInt(part.region.x);
+                out.writeInt(part.region.y);
+                out.writeInt(part.region.width);
+                out.writeInt(part.region.height);
+                out.writeInt(part.pixels.getWidth());
+                out.writeInt(part.pixels.getHeight());
+                out.writeInt(compressed.length);
+                out.write(compressed);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void writeIndex(FileChannel channel) throws IOException {
+            ByteBuffer index = ByteBuffer.allocate(offsets.length * INDEX_ENTRY_SIZE);
+            for (int tile = 0; tile < offsets.length; tile++) {
+                index.putLong(offsets[tile]).putInt(lengths[tile]).putInt(colors[tile]);
+            }
+            index.flip();
+            indexOffset = end;
+            writeFully(channel, index, indexOffset);
+            end += offsets.length * INDEX_ENTRY_SIZE;
+        }
+
+        private void decodeTile(int tile, Rectangle bounds, int[] pixels, int scan, Inflater inflater)
+                throws IOException {
+            int start = bounds.y * scan + bounds.x;
+            if (lengths[tile] == 0) {
+                for (int y = 0; y < bounds.height; y++) {
+                    Arrays.fill(pixels, start + y * scan, start + y * scan + bounds.width, colors[tile]);
+                }
+                return;
+            }
+            byte[] compressed = new byte[lengths[tile]];
+            readFully(source, ByteBuffer.wrap(compressed), offsets[tile]);
+            try {
+                inflate(inflater, compressed, pixels, start, scan, bounds.width, bounds.height);
+            } catch (IOException ex) {
+                throw new IOException("Corrupt project tile " + tile + " at " + offsets[tile] + ": " + file, ex);
+            }
+        }
+
+        /**
+         * Notes that the pixels of a history entry have changed since it was created, so that
+         * the next save writes it again.
+         */
+        void historyChanged(HistoryEntry entry) {
+            writtenHistory.remove(entry);
+        }
+
+        private static byte[] deflate(int[] pixels, int start, int scan, int width, int height) {
+            byte[] raw = new byte[width * height * 4];
+            int i = 0;
+            for (int y = 0; y < height; y++) {
+                int left = 0;
+                for (int x = 0, p = start + y * scan; x < width; x++, p++) {
+                    int delta = pixels[p] - left;
+                    left = pixels[p];
+                    raw[i++] = (byte) (delta >>> 24);
+                    raw[i++] = (byte) (delta >>> 16);
+                    raw[i++] = (byte) (delta >>> 8);
+                    raw[i++] = (byte) delta;
+                }
+            }
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 8 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private static void inflate(Inflater inflater, byte[] compressed, int[] pixels, int start, int scan,
+                int width, int height) throws IOException {
+            byte[] raw = new byte[width * height * 4];
+            inflater.reset();
+            inflater.setInput(compressed);
+            try {
+                int read = 0;
+                while (read < raw.length && !inflater.finished()) {
+                    int n = inflater.inflate(raw, read, raw.length - read);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    read += n;
+                }
+                if (read != raw.length) {
+                    throw new IOException("Truncated tile data");
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException(ex);
+            }
+            int i = 0;
+            for (int y = 0; y < height; y++) {
+                int left = 0;
+                for (int x = 0, p = start + y * scan; x < width; x++, p++) {
+                    int delta = (raw[i] & 0xFF) << 24 | (raw[i + 1] & 0xFF) << 16 | (raw[i + 2] & 0xFF) << 8
+                            | (raw[i + 3] & 0xFF);
+                    i += 4;
+                    left += delta;
+                    pixels[p] = left;
+                }
+            }
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of project file");
+                }
+                position += n;
+            }
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * The HistoryThumbnails class keeps a small thumbnail of each history state. A live
+     * thumbnail of the canvas is kept up to date on a background thread by downscaling copies,
+     * taken on the event dispatch thread, of only the regions that change; after each update a
+     * copy of it becomes the thumbnail of the current state. Thumbnails are kept in an LRU
+     * cache limited by the memory they use.
+     */
+static class HistoryThumbnails {
+        static final int MAX_WIDTH = 160;
+        private static final long MAX_CACHE_BYTES = 32L * 1024 * 1024;
+
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "canvas-history-thumbnails");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final LinkedHashMap<Long, BufferedImage> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private long cacheBytes;
+        private Runnable listener;
+
+        // Only touched on the background thread.
+        private BufferedImage live;
+        private int liveCanvasWidth, liveCanvasHeight;
+
+        void setListener(Runnable listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Returns how many canvas pixels, in each direction, make up one thumbnail pixel.
+         */
+        static int cellSize(int canvasWidth) {
+            return Math.max(1, (canvasWidth + MAX_WIDTH - 1) / MAX_WIDTH);
+        }
+
+        /**
+         * Grows a region to whole thumbnail cells, so that it can be downscaled on its own.
+         */
+        Rectangle alignToCells(Rectangle region, int canvasWidth, int canvasHeight) {
+            int cell = cellSize(canvasWidth);
+            int x0 = Math.max(0, region.x) / cell * cell;
+            int y0 = Math.max(0, region.y) / cell * cell;
+            int x1 = Math.min(canvasWidth, (region.x + region.width + cell - 1) / cell * cell);
+            int y1 = Math.min(canvasHeight, (region.y + region.height + cell - 1) / cell * cell);
+            return new Rectangle(x0, y0, Math.max(0, x1 - x0), Math.max(0, y1 - y0));
+        }
+
+        synchronized BufferedImage get(long stateId) {
+            return cache.get(stateId);
+        }
+
+        /**
+         * Downscales a copy of a cell-aligned region of the canvas, with the canvas as it is in
+         * the given state, into the live thumbnail on the background thread, then makes the
+         * result the thumbnail of that state.
+         */
+        void update(long stateId, BufferedImage snapshot, Rectangle region, int canvasWidth, int canvasHeight) {
+            executor.execute(() -> {
+                if (live == null || liveCanvasWidth != canvasWidth || liveCanvasHeight != canvasHeight) {
+                    int cell = cellSize(canvasWidth);
+                    live = new BufferedImage((canvasWidth + cell - 1) / cell, (canvasHeight + cell - 1) / cell,
+                            BufferedImage.TYPE_INT_RGB);
+                    liveCanvasWidth = canvasWidth;
+                    liveCanvasHeight = canvasHeight;
+                }
+                downscale(snapshot, region, cellSize(canvasWidth), live);
+                BufferedImage thumbnail = new BufferedImage(live.getWidth(), live.getHeight(),
+                        BufferedImage.TYPE_INT_RGB);
+                thumbnail.setData(live.getRaster());
+                SwingUtilities.invokeLater(() -> {
+                    put(stateId, thumbnail);
+                    if (listener != null) {
+                        listener.run();
+                    }
+                });
+            });
+        }
+
+        private synchronized void put(long stateId, BufferedImage thumbnail) {
+            BufferedImage previous = cache.put(stateId, thumbnail);
+            if (previous != null) {
+                cacheBytes -= bytes(previous);
+            }
+            cacheBytes += bytes(thumbnail);
+            Iterator<BufferedImage> eldest = cache.values().iterator();
+            while (cacheBytes > MAX_CACHE_BYTES && eldest.hasNext()) {
+                cacheBytes -= bytes(eldest.next());
+                eldest.remove();
+            }
+        }
+
+        private static long bytes(BufferedImage image) {
+            return 4L * image.getWidth() * image.getHeight();
+        }
+
+        /**
+         * Box-filters a copy of a region of the canvas into the thumbnail, one thumbnail pixel per
+         * cell. Transparent canvas pixels are shown over white, as on screen.
+         */
+        private static void downscale(BufferedImage snapshot, Rectangle region, int cell, BufferedImage thumbnail) {
+            int[] source = ((DataBufferInt) snapshot.getRaster().getDataBuffer()).getData();
+            int sourceWidth = snapshot.getWidth();
+            for (int ty = region.y / cell; ty * cell < region.y + region.height && ty < thumbnail.getHeight(); ty++) {
+                for (int tx = region.x / cell; tx * cell < region.x + region.width && tx < thumbnail.getWidth(); tx++) {
+                    int x0 = tx * cell;
+                    int y0 = ty * cell;
+                    int x1 = Math.min(x0 + cell, region.x + region.width);
+                    int y1 = Math.min(y0 + cell, region.y + region.height);
+                    long r = 0, g = 0, b = 0;
+                    int count = 0;
+                    for (int y = y0; y < y1; y++) {
+                        for (int x = x0; x < x1; x++) {
+                            int argb = source[(y - region.y) * sourceWidth + x - region.x];
+                            int a = argb >>> 24;
+                            int white = 255 - a;
+                            r += (((argb >> 16) & 0xFF) * a + 255 * white) / 255;
+                            g += (((argb >> 8) & 0xFF) * a + 255 * white) / 255;
+                            b += ((argb & 0xFF) * a + 255 * white) / 255;
+                            count++;
+                        }
+                    }
+                    if (count > 0) {
+                        thumbnail.setRGB(tx, ty, (int) (r / count) << 16 | (int) (g / count) << 8 | (int) (b / count));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The HistoryPanel class shows a strip of thumbnails, one per undo/redo history state, with
+     * the current state highlighted. Clicking a thumbnail jumps straight to that state.
+     */
+static class HistoryPanel extends JPanel {
+        private static final int CELL_WIDTH = 96;
+        private static final int CELL_HEIGHT = 60;
+        private static final int GAP = 6;
+
+        private DrawingPanel drawingPanel;
+
+        public HistoryPanel(DrawingPanel drawingPanel) {
+            this.drawingPanel = drawingPanel;
+            setBackground(Color.LIGHT_GRAY);
+            drawingPanel.setHistoryListener(this::historyChanged);
+
+            addMouseListener(new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    int position = (e.getX() - GAP / 2) / (CELL_WIDTH + GAP);
+                    if (position >= 0 && position < drawingPanel.getHistoryLength()) {
+                        drawingPanel.jumpToHistory(position);
+                    }
+                }
+            });
+        }
+
+        private void historyChanged() {
+            revalidate();
+            repaint();
+            int x = GAP / 2 + drawingPanel.getHistoryPosition() * (CELL_WIDTH + GAP);
+            scrollRectToVisible(new Rectangle(x, 0, CELL_WIDTH + GAP, CELL_HEIGHT));
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(drawingPanel.getHistoryLength() * (CELL_WIDTH + GAP) + GAP, CELL_HEIGHT + 2 * GAP);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            Rectangle clip = g.getClipBounds();
+            int length = drawingPanel.getHistoryLength();
+            int current = drawingPanel.getHistoryPosition();
+            int first = clip == null ? 0 : Math.max(0, clip.x / (CELL_WIDTH + GAP) - 1);
+            int last = clip == null ? length - 1 : Math.min(length - 1, (clip.x + clip.width) / (CELL_WIDTH + GAP) + 1);
+            for (int i = first; i <= last; i++) {
+                int x = GAP + i * (CELL_WIDTH + GAP);
+                BufferedImage thumbnail = drawingPanel.getThumbnails().get(drawingPanel.getHistoryStateId(i));
+                if (thumbnail != null) {
+                    g.drawImage(thumbnail, x, GAP, CELL_WIDTH, CELL_HEIGHT, this);
+                } else {
+                    g.setColor(Color.GRAY);
+                    g.fillRect(x, GAP, CELL_WIDTH, CELL_HEIGHT);
+                    g.setColor(Color.WHITE);
+                    g.drawString(Integer.toString(i), x + 4, GAP + 14);
+                }
+                g.setColor(i == current ? Color.BLUE : Color.DARK_GRAY);
+                g.drawRect(x - 1, GAP - 1, CELL_WIDTH + 1, CELL_HEIGHT + 1);
+                if (i == current) {
+                    g.drawRect(x - 2, GAP - 2, CELL_WIDTH + 3, CELL_HEIGHT + 3);
+                }
+            }
+        }
+    }
+
+    /**
+     * The ImageSelection class carries an image to the system clipboard.
+     */
+static class ImageSelection implements Transferable {
+        private final Image image;
+
+        ImageSelection(Image image) {
+            this.image = image;
+        }
+
+        @Override
+        public DataFlavor[] getTransferDataFlavors() {
+            return new DataFlavor[] { DataFlavor.imageFlavor };
+        }
+
+        @Override
+        public boolean isDataFlavorSupported(DataFlavor flavor) {
+            return DataFlavor.imageFlavor.equals(flavor);
+        }
+
+        @Override
+        public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException {
+            if (!isDataFlavorSupported(flavor)) {
+                throw new UnsupportedFlavorException(flavor);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * The MainPanel class represents a JPanel that contains various control buttons and
+     * interacts with the DrawingPanel to provide functionalities for a drawing application's
+     * user interface. 
+     * It includes buttons for selecting pen, eraser, clearing the canvas, working with shapes 
+     * and text, undo and redo actions, and saving/opening drawings.
+     * This class helps manage the user interface components and actions that enable the
+     * user to interact with the drawing area (DrawingPanel) and perform various operations.
+     */
+static class MainPanel extends JPanel {
+
+        private JButton playAnimationsButtonRedo;
+
+        private JButton playAnimationsButtonUndo;
+
+        private DrawingPanel drawingPanel;
+
+        public MainPanel(DrawingPanel panel) {
+            this.drawingPanel = panel;
+            setLayout(new FlowLayout(FlowLayout.CENTER));
+
+            JButton penButton = createPenButton();
+            add(penButton);
+
+            JButton eraserButton = createEraserButton();
+            add(eraserButton);
+
+            JButton selectButton = createSelectButton();
+            add(selectButton);
+
+            JButton clearButton = createClearButton();
+            add(clearButton);
+
+            JButton shapesButton = createShapesButton();
+            add(shapesButton);
+
+            JButton textButton = createTextButton();
+            add(textButton);
+
+            JButton undoButton = createUndoButton();
+            add(undoButton);
+
+            JButton redoButton = createRedoButton();
+            add(redoButton);
+
+            JButton vectorButton = createVectorButton();
+            add(vectorButton);
+
+            JButton filterButton = createFilterButton();
+            add(filterButton);
+
+            playAnimationsButtonRedo = createPlayAnimationsButtonRedo();
+            add(playAnimationsButtonRedo);
+
+            playAnimationsButtonUndo = createPlayAnimationsButtonUndo();
+            add(playAnimationsButtonUndo);
+
+            JButton openImageButton = createOpenImageButton();
+            add(openImageButton);
+
+            JButton saveButton = createSaveButton();
+            add(saveButton);
+
+            JButton exportButton = createExportButton();
+            add(exportButton);
+
+            JButton sessionButton = createSessionButton();
+            add(sessionButton);
+
+            JButton recordButton = createRecordButton();
+            add(recordButton);
+        }
+
+        private JButton createPenButton() {
+            JButton button = new JButton();
+            button.setPreferredSize(new Dimension(80, 60));
+            ImageIcon PenIcon = new ImageIcon("Pen.png");
+            button.setIcon(PenIcon);
+            PenButton penButton = new PenButton(drawingPanel);
+            button.addActionListener(e -> {
+                penButton.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+                penButton.setVisible(true);
+            });
+            return button;
+        }
+
+        private JButton createClearButton() {
+            JButton button = new JButton();
+            button.setPreferredSize(new Dimension(80, 60));
+            ImageIcon ClearIcon = new ImageIcon("Clear.png");
+            button.setIcon(ClearIcon);
+            button.addActionListener(e -> drawingPanel.clearPanel());
+            return button;
+        }
+
+        private JButton createEraserButton() {
+            JButton button = new JButton();
+            button.setPreferredSize(new Dimension(80, 60));
+            ImageIcon EraserIcon = new ImageIcon("Eraser.png");
+            button.setIcon(EraserIcon);
+            button.addActionListener(e -> toggleEraser());
+            return button;
+        }
+
+        private void toggleEraser() {
+            drawingPanel.setEraser(!drawingPanel.isErasing);
+        }
+
+        private JButton createSelectButton() {
+            JButton button = new JButton();
+            button.setPreferredSize(new Dimension(80, 60));
+            ImageIcon SelectIcon = new ImageIcon("Select.png");
+            button.setIcon(SelectIcon);
+            button.addActionListener(e -> drawingPanel.setSelecting(!drawingPanel.isSelecting()));
+            return button;
         }
 
         private JButton createShapesButton() {
@@ -360,7 +5407,7 @@ static class MainPanel extends JPanel {
         }
 
         private void showShapesButton() {
-            ShapesButton dialog = new ShapesButton(this, drawingPanel.bufferGraphics);
+            ShapesButton dialog = new ShapesButton(this);
             dialog.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
             dialog.setSize(600, 800);
             dialog.setVisible(true);
@@ -408,6 +5455,21 @@ static class MainPanel extends JPanel {
             return button;
         }
 
+        private JButton createFilterButton() {
+            JButton button = new JButton();
+            button.setPreferredSize(new Dimension(80, 60));
+            ImageIcon FiltersIcon = new ImageIcon("Filters.png");
+            button.setIcon(FiltersIcon);
+            button.addActionListener(e -> showFilterDialog());
+            return button;
+        }
+
+        private void showFilterDialog() {
+            FilterDialog dialog = new FilterDialog(drawingPanel);
+            dialog.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+            dialog.setVisible(true);
+        }
+
         private void showVectorDialog() {
             VectorDialog dialog = new VectorDialog(drawingPanel);
             dialog.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -441,56 +5503,196 @@ static class MainPanel extends JPanel {
             return button;
         }
 
-        private JButton createOpenImageButton() {
+        private JButton createOpenImageButton() {
+            JButton button = new JButton();
+            button.setPreferredSize(new Dimension(80, 60));
+            ImageIcon OpenIcon = new ImageIcon("Open.png");
+            button.setIcon(OpenIcon);
+            button.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    openImage();
+                }
+            });
+
+            return button;
+        }
+
+        private void openImage() {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setFileFilter(new FileNameExtensionFilter("PNG Images, SVG Drawings and Canvas Projects",
+                    "png", "svg", "canvas"));
+
+            if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                File selectedFile = fileChooser.getSelectedFile();
+                if (selectedFile.getName().toLowerCase().endsWith(".svg")) {
+                    drawingPanel.importSvg(selectedFile);
+                    return;
+                }
+                if (drawingPanel.getSession() != null) {
+                    JOptionPane.showMessageDialog(this,
+                            "Leave the shared session before opening an image or project.", "Shared Session",
+                            JOptionPane.INFORMATION_MESSAGE);
+                    return;
+                }
+                if (selectedFile.getName().toLowerCase().endsWith(".canvas")) {
+                    try {
+                        drawingPanel.openProject(selectedFile);
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                        JOptionPane.showMessageDialog(this, "Unable to open the selected project.", "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    }
+                    return;
+                }
+                try {
+                    if (!drawingPanel.openImage(selectedFile)) {
+                        JOptionPane.showMessageDialog(this, "Unable to open the selected image.", "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        private JButton createExportButton() {
+            JButton button = new JButton();
+            button.setPreferredSize(new Dimension(80, 60));
+            ImageIcon ExportIcon = new ImageIcon("Export.png");
+            button.setIcon(ExportIcon);
+            button.addActionListener(e -> exportDrawing(button));
+            return button;
+        }
+
+        /**
+         * Exports the drawing to every default target at once, named after the chosen file, and
+         * shows how long each target took.
+         */
+        private void exportDrawing(JButton button) {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setDialogTitle("Export Set Base Name");
+            if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File selectedFile = fileChooser.getSelectedFile();
+            String name = selectedFile.getName();
+            String lower = name.toLowerCase();
+            if (lower.endsWith(".png") || lower.endsWith(".jpg")) {
+                selectedFile = new File(selectedFile.getParentFile(), name.substring(0, name.length() - 4));
+            }
+            File base = selectedFile;
+            ExportPipeline pipeline = new ExportPipeline(drawingPanel.getImage());
+            button.setEnabled(false);
+            Thread worker = new Thread(() -> {
+                long start = System.nanoTime();
+                List<ExportPipeline.Report> reports = pipeline.export(base, ExportTarget.defaults());
+                long elapsed = System.nanoTime() - start;
+                StringBuilder message = new StringBuilder();
+                for (ExportPipeline.Report report : reports) {
+                    message.append(report).append('\n');
+                }
+                message.append(String.format("Total: %.0f ms", elapsed / 1e6));
+                EventQueue.invokeLater(() -> {
+                    button.setEnabled(true);
+                    JOptionPane.showMessageDialog(this, message.toString(), "Export",
+                            JOptionPane.INFORMATION_MESSAGE);
+                });
+            }, "canvas-export");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        private JButton createSessionButton() {
+            JButton button = new JButton();
+            button.setPreferredSize(new Dimension(80, 60));
+            ImageIcon ShareIcon = new ImageIcon("Share.png");
+            button.setIcon(ShareIcon);
+            button.addActionListener(e -> showSessionDialog());
+            return button;
+        }
+
+        private JButton createRecordButton() {
             JButton button = new JButton();
             button.setPreferredSize(new Dimension(80, 60));
-            ImageIcon OpenIcon = new ImageIcon("Open.png");
-            button.setIcon(OpenIcon);
-            button.addActionListener(new ActionListener() {
-                @Override
-                public void actionPerformed(ActionEvent e) {
-                    openImage();
-                }
-            });
-
+            ImageIcon RecordIcon = new ImageIcon("Record.png");
+            button.setIcon(RecordIcon);
+            button.addActionListener(e -> toggleTraceRecording(button));
             return button;
         }
 
-        private void openImage() {
+        private void toggleTraceRecording(JButton button) {
+            if (drawingPanel.isRecordingTrace()) {
+                drawingPanel.stopTraceRecording();
+                button.setIcon(new ImageIcon("Record.png"));
+                return;
+            }
             JFileChooser fileChooser = new JFileChooser();
-            fileChooser.setFileFilter(new FileNameExtensionFilter("PNG Images", "png"));
-
-            if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            fileChooser.setFileFilter(new FileNameExtensionFilter("Input Traces", "trace"));
+            if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
                 File selectedFile = fileChooser.getSelectedFile();
+                if (!selectedFile.getName().toLowerCase().endsWith(".trace")) {
+                    selectedFile = new File(selectedFile.getAbsolutePath() + ".trace");
+                }
                 try {
-                    BufferedImage image = ImageIO.read(selectedFile);
-                    if (image != null) {
-                        drawingPanel.bufferImage = image;
-                        drawingPanel.bufferGraphics = image.createGraphics();
-                        drawingPanel.repaint();
-                    } else {
-                        JOptionPane.showMessageDialog(this, "Unable to open the selected image.", "Error",
-                                JOptionPane.ERROR_MESSAGE);
-                    }
+                    drawingPanel.startTraceRecording(new InputTraceRecorder(
+                            new OutputStreamWriter(new FileOutputStream(selectedFile), StandardCharsets.UTF_8)));
+                    button.setIcon(new ImageIcon("Stop.png"));
                 } catch (IOException ex) {
-                    ex.printStackTrace();
+                    JOptionPane.showMessageDialog(this, "Unable to record to the selected file.", "Error",
+                            JOptionPane.ERROR_MESSAGE);
                 }
             }
         }
 
+        private void showSessionDialog() {
+            SessionDialog dialog = new SessionDialog(drawingPanel);
+            dialog.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+            dialog.setVisible(true);
+        }
+
         private void saveDrawing() {
             JFileChooser fileChooser = new JFileChooser();
-            fileChooser.setFileFilter(new FileNameExtensionFilter("PNG Images", "png"));
+            FileNameExtensionFilter pngFilter = new FileNameExtensionFilter("PNG Images", "png");
+            FileNameExtensionFilter projectFilter = new FileNameExtensionFilter("Canvas Projects", "canvas");
+            fileChooser.addChoosableFileFilter(pngFilter);
+            fileChooser.addChoosableFileFilter(projectFilter);
+            fileChooser.setFileFilter(pngFilter);
+            if (drawingPanel.getProjectFile() != null) {
+                fileChooser.setFileFilter(projectFilter);
+                fileChooser.setSelectedFile(drawingPanel.getProjectFile());
+            }
 
             if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
                 File selectedFile = fileChooser.getSelectedFile();
+                String name = selectedFile.getName().toLowerCase();
+                boolean saveProject = name.endsWith(".canvas")
+                        || (fileChooser.getFileFilter() == projectFilter && !name.endsWith(".png"));
+
+                if (saveProject) {
+                    if (!name.endsWith(".canvas")) {
+                        selectedFile = new File(selectedFile.getAbsolutePath() + ".canvas");
+                    }
+                    boolean includeHistory = drawingPanel.getHistoryLength() > 1
+                            && JOptionPane.showConfirmDialog(this, "Include the undo history in the project?",
+                                    "Save Project", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION;
+                    try {
+                        drawingPanel.saveProject(selectedFile, includeHistory);
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                        JOptionPane.showMessageDialog(this, "Unable to save the project.", "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    }
+                    return;
+                }
 
-                if (!selectedFile.getName().toLowerCase().endsWith(".png")) {
+                if (!name.endsWith(".png")) {
                     selectedFile = new File(selectedFile.getAbsolutePath() + ".png");
                 }
 
                 try {
-                    ImageIO.write(drawingPanel.bufferImage, "png", selectedFile);
+                    ImageIO.write(drawingPanel.getImage(), "png", selectedFile);
+                    drawingPanel.recordAction("save");
                 } catch (Exception ex) {
                     ex.printStackTrace();
                 }
@@ -530,8 +5732,34 @@ static class PenButton extends JDialog {
             panel.add(thicknessLabel);
             panel.add(thicknessSlider);
 
+            JLabel hardnessLabel = new JLabel("Brush Hardness (%):");
+            JSlider hardnessSlider = new JSlider(0, 100, drawingPanel.getCurrentHardness());
+            hardnessSlider.setMajorTickSpacing(25);
+            hardnessSlider.setPaintTicks(true);
+            hardnessSlider.setPaintLabels(true);
+            panel.add(hardnessLabel);
+            panel.add(hardnessSlider);
+
+            JLabel opacityLabel = new JLabel("Brush Opacity (%):");
+            JSlider opacitySlider = new JSlider(1, 100, drawingPanel.getCurrentOpacity());
+            opacitySlider.setMajorTickSpacing(25);
+            opacitySlider.setPaintTicks(true);
+            opacitySlider.setPaintLabels(true);
+            panel.add(opacityLabel);
+            panel.add(opacitySlider);
+
+            JLabel qualityLabel = new JLabel("Rendering Quality:");
+            JComboBox<RenderQuality> qualityComboBox = new JComboBox<>(RenderQuality.values());
+            qualityComboBox.setSelectedItem(drawingPanel.getRenderQuality());
+            panel.add(qualityLabel);
+            panel.add(qualityComboBox);
+
             JButton setButton = new JButton("Set");
-            setButton.addActionListener(e -> setPenSettings(colorChooser.getColor(), thicknessSlider.getValue()));
+            setButton.addActionListener(e -> {
+                drawingPanel.setRenderQuality((RenderQuality) qualityComboBox.getSelectedItem());
+                setPenSettings(colorChooser.getColor(), thicknessSlider.getValue(), hardnessSlider.getValue(),
+                        opacitySlider.getValue());
+            });
             panel.add(setButton);
 
             add(panel);
@@ -539,11 +5767,12 @@ static class PenButton extends JDialog {
         }
 
         /**
-         * Sets the pen settings in the associated DrawingPanel with the selected color and thickness,
-         * and then closes the dialog.
+         * Sets the pen settings in the associated DrawingPanel with the selected color, thickness,
+         * hardness and opacity, and then closes the dialog.
          */
-        private void setPenSettings(Color color, int thickness) {
+        private void setPenSettings(Color color, int thickness, int hardness, int opacity) {
             drawingPanel.setPenSettings(color, thickness);
+            drawingPanel.setBrushSettings(hardness, opacity);
             dispose();
         }
     }
@@ -661,13 +5890,11 @@ static class ShapesButton extends JDialog {
         private JFormattedTextField angleField;
         private JButton drawButton;
         private MainPanel mainPanel;
-        private Graphics2D bufferGraphics;
         private JColorChooser colorChooser;
         private JSlider thicknessSlider;
 
-        public ShapesButton(MainPanel mainPanel, Graphics2D bufferGraphics) {
+        public ShapesButton(MainPanel mainPanel) {
             this.mainPanel = mainPanel;
-            this.bufferGraphics = bufferGraphics;
             setTitle("Shapes Dialog");
             JPanel panel = new JPanel();
             panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
@@ -719,182 +5946,1362 @@ static class ShapesButton extends JDialog {
             rotateCheckBox = new JCheckBox("Rotate Shape");
             panel.add(rotateCheckBox);
 
-            JLabel angleLabel = new JLabel("Rotation Angle (degrees):");
-            NumberFormat format = NumberFormat.getNumberInstance();
-            angleField = new JFormattedTextField(format);
-            angleField.setColumns(4);
-            angleField.setValue(0); // Default angle
-            panel.add(angleLabel);
-            panel.add(angleField);
+            JLabel angleLabel = new JLabel("Rotation Angle (degrees):");
+            NumberFormat format = NumberFormat.getNumberInstance();
+            angleField = new JFormattedTextField(format);
+            angleField.setColumns(4);
+            angleField.setValue(0); // Default angle
+            panel.add(angleLabel);
+            panel.add(angleField);
+
+            drawButton = new JButton("Draw");
+            panel.add(drawButton);
+
+            drawButton.addActionListener(e -> drawShape());
+
+            add(panel);
+            pack();
+        }
+
+        /**
+         * Draws the selected shape on the DrawingPanel based on the user's customization of shape properties,
+         * including color, thickness, size, vertices, fill option, flipping, and rotation.
+         */
+        private void drawShape() {
+            String selectedShape = (String) shapeComboBox.getSelectedItem();
+            int selectedSize = (int) sizeComboBox.getSelectedItem();
+            int numVertices = (int) verticesComboBox.getSelectedItem();
+            boolean fillShape = fillCheckBox.isSelected();
+            boolean flipShape = flipCheckBox.isSelected();
+            boolean rotateShape = rotateCheckBox.isSelected();
+
+            Color drawColor = colorChooser.getColor();
+            int thickness = thicknessSlider.getValue();
+
+            int centerX = (getWidth() / 2)+500;
+            int centerY = (getHeight() / 2);
+
+            double rotationAngle = rotateShape ? Double.parseDouble(angleField.getText()) : 0;
+
+            int flip = DrawingPanel.FLIP_NONE;
+            if (flipShape && horizontalFlipRadioButton.isSelected()) {
+                flip = DrawingPanel.FLIP_HORIZONTAL;
+            } else if (flipShape && verticalFlipRadioButton.isSelected()) {
+                flip = DrawingPanel.FLIP_VERTICAL;
+            }
+
+            mainPanel.drawingPanel.drawShape(selectedShape, selectedSize, numVertices, fillShape, flip, rotationAngle,
+                    drawColor, thickness, centerX, centerY);
+        }
+    }
+
+    /**
+     * The FilterDialog class lets the user apply a blur, sharpen, grayscale or levels filter to
+     * the selection, or to the whole canvas when nothing is selected. Filters run in the
+     * background and the dialog stays open, showing how long the last filter took and its
+     * throughput.
+     */
+static class FilterDialog extends JDialog {
+        private final DrawingPanel drawingPanel;
+        private final JComboBox<String> filterComboBox;
+        private final JSlider radiusSlider;
+        private final JSlider amountSlider;
+        private final JSpinner inputBlackSpinner;
+        private final JSpinner inputWhiteSpinner;
+        private final JSpinner gammaSpinner;
+        private final JSpinner outputBlackSpinner;
+        private final JSpinner outputWhiteSpinner;
+        private final JButton applyButton;
+        private final JLabel statusLabel;
+
+        public FilterDialog(DrawingPanel drawingPanel) {
+            this.drawingPanel = drawingPanel;
+            setTitle("Filters");
+            JPanel panel = new JPanel();
+            panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+
+            filterComboBox = new JComboBox<>(new String[] { "Blur", "Sharpen", "Grayscale", "Levels" });
+            panel.add(new JLabel("Filter:"));
+            panel.add(filterComboBox);
+
+            radiusSlider = new JSlider(1, 50, 3);
+            radiusSlider.setMajorTickSpacing(10);
+            radiusSlider.setPaintTicks(true);
+            radiusSlider.setPaintLabels(true);
+            panel.add(new JLabel("Radius (Blur, Sharpen):"));
+            panel.add(radiusSlider);
+
+            amountSlider = new JSlider(10, 300, 100);
+            amountSlider.setMajorTickSpacing(50);
+            amountSlider.setPaintTicks(true);
+            amountSlider.setPaintLabels(true);
+            panel.add(new JLabel("Amount % (Sharpen):"));
+            panel.add(amountSlider);
+
+            inputBlackSpinner = new JSpinner(new SpinnerNumberModel(0, 0, 254, 1));
+            inputWhiteSpinner = new JSpinner(new SpinnerNumberModel(255, 1, 255, 1));
+            gammaSpinner = new JSpinner(new SpinnerNumberModel(1.0, 0.1, 10.0, 0.1));
+            outputBlackSpinner = new JSpinner(new SpinnerNumberModel(0, 0, 255, 1));
+            outputWhiteSpinner = new JSpinner(new SpinnerNumberModel(255, 0, 255, 1));
+            panel.add(new JLabel("Levels input black / white:"));
+            panel.add(inputBlackSpinner);
+            panel.add(inputWhiteSpinner);
+            panel.add(new JLabel("Levels gamma:"));
+            panel.add(gammaSpinner);
+            panel.add(new JLabel("Levels output black / white:"));
+            panel.add(outputBlackSpinner);
+            panel.add(outputWhiteSpinner);
+
+            applyButton = new JButton("Apply");
+            panel.add(applyButton);
+            statusLabel = new JLabel(" ");
+            panel.add(statusLabel);
+
+            applyButton.addActionListener(e -> applyFilter());
+
+            add(panel);
+            pack();
+        }
+
+        private ImageFilter createFilter() {
+            switch ((String) filterComboBox.getSelectedItem()) {
+                case "Sharpen":
+                    return new ConvolutionFilter(radiusSlider.getValue(), amountSlider.getValue());
+                case "Grayscale":
+                    return new GrayscaleFilter();
+                case "Levels":
+                    return new LevelsFilter((Integer) inputBlackSpinner.getValue(),
+                            (Integer) inputWhiteSpinner.getValue(), (Double) gammaSpinner.getValue(),
+                            (Integer) outputBlackSpinner.getValue(), (Integer) outputWhiteSpinner.getValue());
+                default:
+                    return new ConvolutionFilter(radiusSlider.getValue(), 0);
+            }
+        }
+
+        private void applyFilter() {
+            boolean started = drawingPanel.applyFilter(createFilter(), pipeline -> {
+                applyButton.setEnabled(true);
+                Rectangle region = pipeline.getRegion();
+                statusLabel.setText(String.format("%s: %d x %d px in %.0f ms (%.1f MP/s)",
+                        pipeline.getFilter().getName(), region.width, region.height,
+                        pipeline.getElapsedNanos() / 1e6, pipeline.getMegapixelsPerSecond()));
+                pack();
+            });
+            if (started) {
+                applyButton.setEnabled(false);
+                statusLabel.setText("Filtering...");
+            }
+        }
+    }
+
+    /**
+     * The VectorDialog class represents a dialog box for drawing a vector line on the DrawingPanel.
+     * Users can specify the X and Y coordinates for the vector's endpoint within the specified range.
+     * This dialog provides an interface for users to enter coordinates and then draw a vector line on
+     * the DrawingPanel by clicking the "Draw" button.
+     */    
+static class VectorDialog extends JDialog {
+        private JTextField xCoordinateField;
+        private JTextField yCoordinateField;
+        private JButton drawButton;
+        private DrawingPanel drawingPanel;
+
+        /**
+     * Constructs a VectorDialog with the specified DrawingPanel.
+     *
+     * drawingPanel is the DrawingPanel on which the vector line will be drawn.
+     */
+        public VectorDialog(DrawingPanel drawingPanel) {
+            this.drawingPanel = drawingPanel;
+            setTitle("Vector Line");
+            JPanel panel = new JPanel();
+            panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+
+            JLabel xLabel = new JLabel("X Coordinate: (0-1920)");
+            xCoordinateField = new JTextField(10);
+            panel.add(xLabel);
+            panel.add(xCoordinateField);
+
+            JLabel yLabel = new JLabel("Y Coordinate: (0-1050)");
+            yCoordinateField = new JTextField(10);
+            panel.add(yLabel);
+            panel.add(yCoordinateField);
+
+            drawButton = new JButton("Draw");
+            panel.add(drawButton);
+
+            drawButton.addActionListener(e -> drawVector());
+
+            add(panel);
+            pack();
+        }
+
+        /**
+         * Draws a vector line on the DrawingPanel based on the user's input coordinates.
+         * The method validates the coordinates and displays an error message if they are outside the
+         * specified range. If the coordinates are valid, the vector line is drawn on the DrawingPanel.
+         */
+        private void drawVector() {
+            try {
+                int x = Integer.parseInt(xCoordinateField.getText());
+                int y = Integer.parseInt(yCoordinateField.getText());
+
+                if (x < 0 || x > 1920 || y < 0 || y > 1050) {
+                    JOptionPane.showMessageDialog(this,
+                            "X and Y coordinates must be within the specified range.\nX: 0-1920, Y: 0-1050",
+                            "Input Error", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    drawingPanel.drawVector(x, y);
+                    dispose();
+                }
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Please enter valid coordinates.", "Error",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * The DrawOp class is the compact binary form of a drawing operation exchanged in a shared
+     * session. Pen and eraser movement is sent as polylines so that many mouse events collapse
+     * into one operation; text and clear operations are sent as they happen. Everything else
+     * that changes the canvas (shapes, filters, imported layers, undo and redo) is sent as the
+     * blocks of pixels it changed.
+     *
+     * Layout: one type byte followed by the fields of that type. Coordinates are signed shorts,
+     * since pointer drags and moves can leave the canvas, and are clamped to that range when
+     * written; sizes and counts are unsigned shorts, colors are ARGB ints and strings are
+     * length-prefixed UTF-8. A pixel block is its location and size followed by an int length
+     * and its pixels compressed as project tiles are.
+     */
+static class DrawOp {
+        static final byte STROKE = 1;
+        static final byte CLEAR = 2;
+        static final byte TEXT = 3;
+        static final byte MOVE = 4;
+        static final byte PIXELS = 5;
+
+        static final int PIXEL_BLOCK = 64;
+
+        private static final int STROKE_ERASING = 1;
+        private static final int STROKE_CONTINUES = 2;
+
+        private static final int MAX_TEXT_BYTES = 8192;
+
+        byte type;
+        int argb;
+        int thickness;
+        int hardness;
+        int opacity;
+        boolean erasing;
+        boolean continues;
+        int[] xs;
+        int[] ys;
+        int count;
+        String text;
+        String fontName;
+        int fontStyle;
+        int fontSize;
+        int[] pixels;
+        // The client that sent the operation, as numbered by the server.
+        int peer;
+
+        /**
+         * Decodes a single operation from the buffer, advancing its position past the operation.
+         */
+        static DrawOp read(ByteBuffer in) {
+            DrawOp op = new DrawOp();
+            op.type = in.get();
+            switch (op.type) {
+                case STROKE:
+                    op.argb = in.getInt();
+                    op.thickness = in.getShort() & 0xFFFF;
+                    byte flags = in.get();
+                    op.erasing = (flags & STROKE_ERASING) != 0;
+                    op.continues = (flags & STROKE_CONTINUES) != 0;
+                    op.hardness = in.get();
+                    op.opacity = in.get();
+                    op.count = in.getShort() & 0xFFFF;
+                    op.xs = new int[op.count];
+                    op.ys = new int[op.count];
+                    for (int i = 0; i < op.count; i++) {
+                        op.xs[i] = in.getShort();
+                        op.ys[i] = in.getShort();
+                    }
+                    break;
+                case CLEAR:
+                    break;
+                case TEXT:
+                    op.argb = in.getInt();
+                    op.fontStyle = in.get();
+                    op.fontSize = in.getShort() & 0xFFFF;
+                    op.xs = new int[] { in.getShort() };
+                    op.ys = new int[] { in.getShort() };
+                    op.count = 1;
+                    op.fontName = readString(in);
+                    op.text = readString(in);
+                    break;
+                case MOVE:
+                    // xs/ys hold the source location, the source size and the destination.
+                    op.count = 3;
+                    op.xs = new int[3];
+                    op.ys = new int[3];
+                    op.xs[0] = in.getShort();
+                    op.ys[0] = in.getShort();
+                    op.xs[1] = in.getShort() & 0xFFFF;
+                    op.ys[1] = in.getShort() & 0xFFFF;
+                    op.xs[2] = in.getShort();
+                    op.ys[2] = in.getShort();
+                    break;
+                case PIXELS:
+                    // xs/ys hold the location and size of the block.
+                    op.count = 2;
+                    op.xs = new int[2];
+                    op.ys = new int[2];
+                    op.xs[0] = in.getShort();
+                    op.ys[0] = in.getShort();
+                    op.xs[1] = in.getShort() & 0xFFFF;
+                    op.ys[1] = in.getShort() & 0xFFFF;
+                    int length = in.getInt();
+                    if (op.xs[1] < 1 || op.xs[1] > PIXEL_BLOCK || op.ys[1] < 1 || op.ys[1] > PIXEL_BLOCK
+                            || length < 0 || length > in.remaining()) {
+                        throw new IllegalArgumentException("Invalid pixel block");
+                    }
+                    byte[] compressed = new byte[length];
+                    in.get(compressed);
+                    op.pixels = new int[op.xs[1] * op.ys[1]];
+                    Inflater inflater = new Inflater();
+                    try {
+                        ProjectFile.inflate(inflater, compressed, op.pixels, 0, op.xs[1], op.xs[1], op.ys[1]);
+                    } catch (IOException ex) {
+                        throw new IllegalArgumentException("Invalid pixel block", ex);
+                    } finally {
+                        inflater.end();
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown drawing operation " + op.type);
+            }
+            return op;
+        }
+
+        /**
+         * Writes a brush stroke. A stroke that continues one sent in an earlier frame starts at
+         * the last point of that stroke, which has already been drawn.
+         */
+        static void writeStroke(DataOutputStream out, int argb, int thickness, int hardness, int opacity,
+                boolean erasing, boolean continues, int[] xs, int[] ys, int count) throws IOException {
+            out.writeByte(STROKE);
+            out.writeInt(argb);
+            out.writeShort(thickness);
+            out.writeByte((erasing ? STROKE_ERASING : 0) | (continues ? STROKE_CONTINUES : 0));
+            out.writeByte(hardness);
+            out.writeByte(opacity);
+            out.writeShort(count);
+            for (int i = 0; i < count; i++) {
+                writeCoordinate(out, xs[i]);
+                writeCoordinate(out, ys[i]);
+            }
+        }
+
+        static void writeClear(DataOutputStream out) throws IOException {
+            out.writeByte(CLEAR);
+        }
+
+        static void writeText(DataOutputStream out, String text, Font font, int x, int y, int argb)
+                throws IOException {
+            out.writeByte(TEXT);
+            out.writeInt(argb);
+            out.writeByte(font.getStyle());
+            out.writeShort(font.getSize());
+            writeCoordinate(out, x);
+            writeCoordinate(out, y);
+            writeString(out, font.getName());
+            writeString(out, text);
+        }
+
+        static void writeMove(DataOutputStream out, Rectangle source, int x, int y) throws IOException {
+            out.writeByte(MOVE);
+            writeCoordinate(out, source.x);
+            writeCoordinate(out, source.y);
+            out.writeShort(Math.min(source.width, 0xFFFF));
+            out.writeShort(Math.min(source.height, 0xFFFF));
+            writeCoordinate(out, x);
+            writeCoordinate(out, y);
+        }
+
+        /**
+         * Writes a block of the pixels of a canvas, at most PIXEL_BLOCK square.
+         */
+        static void writePixels(DataOutputStream out, int[] pixels, int scan, Rectangle block) throws IOException {
+            byte[] compressed = ProjectFile.deflate(pixels, block.y * scan + block.x, scan, block.width,
+                    block.height);
+            out.writeByte(PIXELS);
+            writeCoordinate(out, block.x);
+            writeCoordinate(out, block.y);
+            out.writeShort(block.width);
+            out.writeShort(block.height);
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        }
+
+        private static void writeCoordinate(DataOutputStream out, int value) throws IOException {
+            out.writeShort(Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value)));
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, MAX_TEXT_BYTES);
+            out.writeShort(length);
+            out.write(bytes, 0, length);
+        }
+
+        private static String readString(ByteBuffer in) {
+            int length = in.getShort() & 0xFFFF;
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The SessionServer class relays drawing frames between the clients of a shared canvas
+     * session on the local network. It runs a single non-blocking selector thread; every frame
+     * read from one client is queued to all other clients, so the server never decodes drawing
+     * operations.
+     *
+     * A frame is a 4-byte length followed by that many bytes of encoded DrawOps. Frames relayed
+     * to clients carry the 4-byte id of the sending client between the two, so that a client
+     * can keep the open strokes of different peers apart.
+     */
+static class SessionServer implements Runnable {
+        static final int MAX_FRAME = 64 * 1024;
+        static final int MAX_QUEUED_FRAMES = 4096;
+
+        private final ServerSocketChannel serverChannel;
+        private final Selector selector;
+        private volatile boolean running;
+
+        private int nextPeerId;
+
+        private static class Peer {
+            final int id;
+            final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_FRAME + 4);
+            final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+
+            Peer(int id) {
+                this.id = id;
+            }
+        }
+
+        public SessionServer(int port) throws IOException {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        public int getPort() {
+            return serverChannel.socket().getLocalPort();
+        }
+
+        public void start() {
+            running = true;
+            Thread thread = new Thread(this, "canvas-session-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void close() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (key.isAcceptable()) {
+                                accept();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        } catch (IOException ex) {
+                            disconnect(key);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel client = serverChannel.accept();
+            if (client == null) {
+                return;
+            }
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            client.register(selector, SelectionKey.OP_READ, new Peer(nextPeerId++));
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Peer peer = (Peer) key.attachment();
+            if (channel.read(peer.readBuffer) < 0) {
+                disconnect(key);
+                return;
+            }
+            ByteBuffer buffer = peer.readBuffer;
+            buffer.flip();
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt(buffer.position());
+                if (length < 0 || length > MAX_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (buffer.remaining() < 4 + length) {
+                    break;
+                }
+                ByteBuffer frame = ByteBuffer.allocate(8 + length);
+                frame.putInt(buffer.getInt());
+                frame.putInt(peer.id);
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + length);
+                frame.put(buffer);
+                buffer.limit(limit);
+                frame.flip();
+                relay(key, frame);
+            }
+            buffer.compact();
+        }
+
+        private void relay(SelectionKey source, ByteBuffer frame) {
+            for (SelectionKey key : selector.keys()) {
+                if (key == source || !key.isValid() || !(key.attachment() instanceof Peer)) {
+                    continue;
+                }
+                Peer peer = (Peer) key.attachment();
+                if (peer.outbound.size() >= MAX_QUEUED_FRAMES) {
+                    // A peer that cannot keep up is dropped rather than buffered without bound.
+                    disconnect(key);
+                    continue;
+                }
+                peer.outbound.add(frame.duplicate());
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Peer peer = (Peer) key.attachment();
+            while (!peer.outbound.isEmpty()) {
+                ByteBuffer frame = peer.outbound.peek();
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                peer.outbound.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void disconnect(SelectionKey key) {
+            closeQuietly(key);
+        }
+
+        private void closeQuietly(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The SessionClient class connects a DrawingPanel to a SessionServer. Local pen segments are
+     * coalesced into polylines and sent once per frame interval, so a fast drag produces one
+     * small operation per frame instead of one per mouse event. Operations from other clients
+     * are decoded on the network thread and handed to the event dispatch thread in batches,
+     * with at most one pending invokeLater at a time regardless of how many peers are drawing.
+     *
+     * The connection is made on the network thread. When it ends for any reason the client
+     * detaches itself from the panel on the event dispatch thread and, unless it was closed
+     * on purpose, tells the user; operations sent after that are dropped.
+     */
+static class SessionClient implements Runnable {
+        private static final int FRAME_MILLIS = 16;
+        private static final int MAX_STROKE_POINTS = 4096;
+
+        private final DrawingPanel drawingPanel;
+        private final String host;
+        private final int port;
+        private volatile SocketChannel channel;
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(SessionServer.MAX_FRAME + 8);
+        private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger outboundFrames = new AtomicInteger();
+        private final ConcurrentLinkedQueue<DrawOp> inbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private volatile boolean running;
+        private volatile boolean closeRequested;
+        private volatile boolean connected;
+        private volatile String failure;
+
+        // Pending operations and the open stroke, guarded by pendingLock.
+        private final Object pendingLock = new Object();
+        private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pendingOut = new DataOutputStream(pendingBytes);
+        private int[] strokeX = new int[64];
+        private int[] strokeY = new int[64];
+        private int strokeCount;
+        private int strokeArgb;
+        private int strokeThickness;
+        private int strokeHardness;
+        private int strokeOpacity;
+        private boolean strokeErasing;
+        private boolean strokeContinues;
+
+        public SessionClient(DrawingPanel drawingPanel, String host, int port) throws IOException {
+            this.drawingPanel = drawingPanel;
+            this.host = host;
+            this.port = port;
+            selector = Selector.open();
+        }
 
-            drawButton = new JButton("Draw");
-            panel.add(drawButton);
+        public void start() {
+            running = true;
+            Thread thread = new Thread(this, "canvas-session-client");
+            thread.setDaemon(true);
+            thread.start();
+        }
 
-            drawButton.addActionListener(e -> drawShape());
+        public void close() {
+            closeRequested = true;
+            running = false;
+            selector.wakeup();
+        }
 
-            add(panel);
-            pack();
+        public boolean isConnected() {
+            return running && connected;
         }
 
         /**
-         * Draws the selected shape on the DrawingPanel based on the user's customization of shape properties,
-         * including color, thickness, size, vertices, fill option, flipping, and rotation.
+         * Queues a pen or eraser segment. Segments that continue the open stroke with the same
+         * settings are appended to it instead of starting a new operation.
          */
-        private void drawShape() {
-            String selectedShape = (String) shapeComboBox.getSelectedItem();
-            int selectedSize = (int) sizeComboBox.getSelectedItem();
-            int numVertices = (int) verticesComboBox.getSelectedItem();
-            boolean fillShape = fillCheckBox.isSelected();
-            boolean flipShape = flipCheckBox.isSelected();
-            boolean rotateShape = rotateCheckBox.isSelected();
+        public void sendSegment(int x0, int y0, int x1, int y1, int argb, int thickness, int hardness, int opacity,
+                boolean erasing) {
+            if (!running) {
+                return;
+            }
+            synchronized (pendingLock) {
+                boolean continues = strokeCount > 0 && strokeArgb == argb && strokeThickness == thickness
+                        && strokeHardness == hardness && strokeOpacity == opacity && strokeErasing == erasing
+                        && strokeX[strokeCount - 1] == x0 && strokeY[strokeCount - 1] == y0;
+                if (!continues) {
+                    closeStroke();
+                    strokeArgb = argb;
+                    strokeThickness = thickness;
+                    strokeHardness = hardness;
+                    strokeOpacity = opacity;
+                    strokeErasing = erasing;
+                    strokeContinues = false;
+                    appendPoint(x0, y0);
+                } else if (strokeCount >= MAX_STROKE_POINTS) {
+                    splitStroke();
+                }
+                appendPoint(x1, y1);
+            }
+        }
 
-            Color drawColor = colorChooser.getColor();
-            int thickness = thicknessSlider.getValue();
+        public void sendClear() {
+            if (!running) {
+                return;
+            }
+            synchronized (pendingLock) {
+                closeStroke();
+                try {
+                    DrawOp.writeClear(pendingOut);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
 
-            int centerX = (getWidth() / 2)+500;
-            int centerY = (getHeight() / 2);
+        public void sendText(String text, Font font, int x, int y, Color color) {
+            if (!running) {
+                return;
+            }
+            synchronized (pendingLock) {
+                closeStroke();
+                try {
+                    DrawOp.writeText(pendingOut, text, font, x, y, color.getRGB());
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
 
-            AffineTransform originalTransform = bufferGraphics.getTransform();
+        public void sendMove(Rectangle source, int x, int y) {
+            if (!running) {
+                return;
+            }
+            synchronized (pendingLock) {
+                closeStroke();
+                try {
+                    DrawOp.writeMove(pendingOut, source, x, y);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Queues the pixels of a region of the canvas in blocks aligned to a PIXEL_BLOCK grid.
+         * Blocks that still match before, the region as it was before the change, are skipped;
+         * before may be null.
+         */
+        public void sendPixels(BufferedImage canvas, Rectangle region, HistoryEntry before) {
+            if (!running) {
+                return;
+            }
+            Rectangle clipped = region.intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+            if (clipped.isEmpty()) {
+                return;
+            }
+            int[] pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+            int scan = canvas.getWidth();
+            int size = DrawOp.PIXEL_BLOCK;
+            synchronized (pendingLock) {
+                closeStroke();
+                for (int y = clipped.y / size * size; y < clipped.y + clipped.height; y += size) {
+                    for (int x = clipped.x / size * size; x < clipped.x + clipped.width; x += size) {
+                        Rectangle block = clipped.intersection(new Rectangle(x, y, size, size));
+                        if (before != null && unchanged(pixels, scan, block, before)) {
+                            continue;
+                        }
+                        try {
+                            DrawOp.writePixels(pendingOut, pixels, scan, block);
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                        }
+                        if (pendingBytes.size() > SessionServer.MAX_FRAME / 2) {
+                            enqueuePendingFrame();
+                        }
+                    }
+                }
+            }
+        }
 
-            if (rotateShape) {
-                double rotationAngle = Double.parseDouble(angleField.getText());
+        private static boolean unchanged(int[] pixels, int scan, Rectangle block, HistoryEntry entry) {
+            HistoryEntry before = entry;
+            while (before != null && !before.region.contains(block)) {
+                before = before.next;
+            }
+            if (before == null) {
+                return false;
+            }
+            int[] old = ((DataBufferInt) before.pixels.getRaster().getDataBuffer()).getData();
+            int oldScan = before.pixels.getWidth();
+            for (int y = block.y; y < block.y + block.height; y++) {
+                int p = y * scan + block.x;
+                int q = (y - before.region.y) * oldScan + block.x - before.region.x;
+                for (int x = 0; x < block.width; x++) {
+                    if (pixels[p + x] != old[q + x]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
 
-                int x = centerX; 
-                int y = centerY; 
+        private void appendPoint(int x, int y) {
+            if (strokeCount == strokeX.length) {
+                strokeX = Arrays.copyOf(strokeX, strokeCount * 2);
+                strokeY = Arrays.copyOf(strokeY, strokeCount * 2);
+            }
+            strokeX[strokeCount] = x;
+            strokeY[strokeCount] = y;
+            strokeCount++;
+        }
 
-                bufferGraphics.translate(x, y);
+        /**
+         * Encodes the open stroke into the pending frame. Must be called with pendingLock held.
+         */
+        private void closeStroke() {
+            writeOpenStroke();
+            strokeCount = 0;
+        }
 
-                bufferGraphics.rotate(Math.toRadians(rotationAngle));
+        private void writeOpenStroke() {
+            if (strokeCount < 2) {
+                return;
+            }
+            try {
+                DrawOp.writeStroke(pendingOut, strokeArgb, strokeThickness, strokeHardness, strokeOpacity,
+                        strokeErasing, strokeContinues, strokeX, strokeY, strokeCount);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            if (pendingBytes.size() > SessionServer.MAX_FRAME / 2) {
+                enqueuePendingFrame();
+            }
+        }
 
-                bufferGraphics.translate(-x, -y);
+        /**
+         * Moves everything drawn since the last frame into the outbound queue. The open stroke is
+         * sent as far as it has got and continues from its last point in the next frame.
+         */
+        private void flushPending() {
+            synchronized (pendingLock) {
+                if (strokeCount >= 2) {
+                    splitStroke();
+                }
+                enqueuePendingFrame();
             }
+        }
 
-            if (flipShape) {
-                bufferGraphics.translate(centerX, centerY);
+        /**
+         * Writes the open stroke and keeps its last point as the start of a continuation.
+         * Must be called with pendingLock held.
+         */
+        private void splitStroke() {
+            writeOpenStroke();
+            int lastX = strokeX[strokeCount - 1];
+            int lastY = strokeY[strokeCount - 1];
+            strokeCount = 0;
+            strokeContinues = true;
+            appendPoint(lastX, lastY);
+        }
 
-                if (horizontalFlipRadioButton.isSelected()) {
-                    bufferGraphics.scale(-1, 1); 
-                } else if (verticalFlipRadioButton.isSelected()) {
-                    bufferGraphics.scale(1, -1); 
-                }
+        private void enqueuePendingFrame() {
+            if (pendingBytes.size() == 0) {
+                return;
+            }
+            byte[] payload = pendingBytes.toByteArray();
+            pendingBytes.reset();
+            if (outboundFrames.get() >= SessionServer.MAX_QUEUED_FRAMES) {
+                // The server is not keeping up; give up on the session rather than queue forever.
+                failure = "the connection is too slow";
+                running = false;
+                selector.wakeup();
+                return;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+            frame.putInt(payload.length);
+            frame.put(payload);
+            frame.flip();
+            outbound.add(frame);
+            outboundFrames.incrementAndGet();
+        }
 
-                bufferGraphics.translate(-centerX, -centerY);
+        @Override
+        public void run() {
+            long nextFlush = System.currentTimeMillis() + FRAME_MILLIS;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connected = channel.connect(new InetSocketAddress(host, port));
+                channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+                while (running) {
+                    long wait = Math.max(1, nextFlush - System.currentTimeMillis());
+                    selector.select(wait);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+                            connected = true;
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read();
+                        }
+                    }
+                    if (System.currentTimeMillis() >= nextFlush) {
+                        flushPending();
+                        nextFlush = System.currentTimeMillis() + FRAME_MILLIS;
+                    }
+                    if (connected) {
+                        write();
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace();
+                failure = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+            } finally {
+                running = false;
+                try {
+                    selector.close();
+                    if (channel != null) {
+                        channel.close();
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                synchronized (pendingLock) {
+                    pendingBytes.reset();
+                    strokeCount = 0;
+                }
+                outbound.clear();
+                boolean wasConnected = connected;
+                String reason = failure;
+                SwingUtilities.invokeLater(() -> disconnected(wasConnected, reason));
             }
+        }
 
-            bufferGraphics.setColor(drawColor);
-            bufferGraphics.setStroke(new BasicStroke(thickness));
+        /**
+         * Detaches the client from the panel once its connection has ended and tells the user,
+         * unless the session was left on purpose.
+         */
+        private void disconnected(boolean wasConnected, String reason) {
+            if (drawingPanel.getSession() != this) {
+                return;
+            }
+            drawingPanel.setSession(null);
+            if (closeRequested) {
+                return;
+            }
+            String message = (wasConnected ? "The shared session was disconnected" : "Unable to join the session")
+                    + (reason != null ? ": " + reason : ".");
+            if (GraphicsEnvironment.isHeadless()) {
+                System.err.println(message);
+            } else {
+                JOptionPane.showMessageDialog(drawingPanel, message, "Shared Session", JOptionPane.WARNING_MESSAGE);
+            }
+        }
 
-            if (selectedShape.equals("Line")) {
-                int x1 = centerX - selectedSize * 5;
-                int y1 = centerY - selectedSize * 5;
-                int x2 = centerX + selectedSize * 5;
-                int y2 = centerY + selectedSize * 5;
-                bufferGraphics.drawLine(x1, y1, x2, y2);
-            } else if (selectedShape.equals("Circle")) {
-                int circleSize = (int) (selectedSize * 10);
-                int x = centerX - circleSize / 2;
-                int y = centerY - circleSize / 2;
-                if (fillShape) {
-                    bufferGraphics.fillOval(x, y, circleSize, circleSize);
-                } else {
-                    bufferGraphics.drawOval(x, y, circleSize, circleSize);
+        private void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                throw new IOException("the host closed the session");
+            }
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 8) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < 0 || length > SessionServer.MAX_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
                 }
-            } else if (selectedShape.equals("Rectangle")) {
-                int rectangleWidth = (int) (selectedSize * 20); 
-                int rectangleHeight = (int) (selectedSize * 10); 
-                int x = centerX - rectangleWidth / 2;
-                int y = centerY - rectangleHeight / 2;
-                if (fillShape) {
-                    bufferGraphics.fillRect(x, y, rectangleWidth, rectangleHeight);
-                } else {
-                    bufferGraphics.drawRect(x, y, rectangleWidth, rectangleHeight);
-                }
-            } else if (selectedShape.equals("Polygon")) {
-                int radius = (int) (selectedSize * 5);
-                int[] xPoints = new int[numVertices];
-                int[] yPoints = new int[numVertices];
-                for (int i = 0; i < numVertices; i++) {
-                    double angle = 2 * Math.PI * i / numVertices;
-                    xPoints[i] = (int) (centerX + radius * Math.cos(angle));
-                    yPoints[i] = (int) (centerY + radius * Math.sin(angle));
+                if (readBuffer.remaining() < 8 + length) {
+                    break;
                 }
-                if (fillShape) {
-                    bufferGraphics.fillPolygon(xPoints, yPoints, numVertices);
-                } else {
-                    bufferGraphics.drawPolygon(xPoints, yPoints, numVertices);
+                readBuffer.getInt();
+                int peer = readBuffer.getInt();
+                int end = readBuffer.position() + length;
+                while (readBuffer.position() < end) {
+                    DrawOp op = DrawOp.read(readBuffer);
+                    op.peer = peer;
+                    inbound.add(op);
                 }
             }
+            readBuffer.compact();
+            if (!inbound.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(this::drainInbound);
+            }
+        }
 
-            bufferGraphics.setTransform(originalTransform);
+        private void write() throws IOException {
+            ByteBuffer frame;
+            while ((frame = outbound.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+                outboundFrames.decrementAndGet();
+            }
+            channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+        }
 
-            mainPanel.drawingPanel.repaint();
+        /**
+         * Applies every operation received so far on the event dispatch thread and repaints once.
+         */
+        private void drainInbound() {
+            drainScheduled.set(false);
+            List<DrawOp> ops = new ArrayList<>();
+            DrawOp op;
+            while ((op = inbound.poll()) != null) {
+                ops.add(op);
+            }
+            if (!ops.isEmpty()) {
+                drawingPanel.applyOperations(ops);
+                drawingPanel.repaint();
+            }
         }
     }
 
     /**
-     * The VectorDialog class represents a dialog box for drawing a vector line on the DrawingPanel.
-     * Users can specify the X and Y coordinates for the vector's endpoint within the specified range.
-     * This dialog provides an interface for users to enter coordinates and then draw a vector line on
-     * the DrawingPanel by clicking the "Draw" button.
-     */    
-static class VectorDialog extends JDialog {
-        private JTextField xCoordinateField;
-        private JTextField yCoordinateField;
-        private JButton drawButton;
+     * The SessionDialog class lets the user host or join a shared canvas session on the local
+     * network. Hosting starts a SessionServer on the given port and joins it; joining connects
+     * to a session hosted on another workstation.
+     */
+static class SessionDialog extends JDialog {
+        private static SessionServer hostedServer;
+
+        private JTextField hostField;
+        private JTextField portField;
         private DrawingPanel drawingPanel;
 
-        /**
-     * Constructs a VectorDialog with the specified DrawingPanel.
-     *
-     * drawingPanel is the DrawingPanel on which the vector line will be drawn.
-     */
-        public VectorDialog(DrawingPanel drawingPanel) {
+        public SessionDialog(DrawingPanel drawingPanel) {
             this.drawingPanel = drawingPanel;
-            setTitle("Vector Line");
+            setTitle("Shared Session");
             JPanel panel = new JPanel();
             panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
 
-            JLabel xLabel = new JLabel("X Coordinate: (0-1920)");
-            xCoordinateField = new JTextField(10);
-            panel.add(xLabel);
-            panel.add(xCoordinateField);
+            JLabel hostLabel = new JLabel("Host:");
+            hostField = new JTextField("localhost", 15);
+            panel.add(hostLabel);
+            panel.add(hostField);
 
-            JLabel yLabel = new JLabel("Y Coordinate: (0-1050)");
-            yCoordinateField = new JTextField(10);
-            panel.add(yLabel);
-            panel.add(yCoordinateField);
+            JLabel portLabel = new JLabel("Port:");
+            portField = new JTextField("5150", 6);
+            panel.add(portLabel);
+            panel.add(portField);
 
-            drawButton = new JButton("Draw");
-            panel.add(drawButton);
+            JButton hostButton = new JButton("Host");
+            hostButton.addActionListener(e -> hostSession());
+            panel.add(hostButton);
 
-            drawButton.addActionListener(e -> drawVector());
+            JButton joinButton = new JButton("Join");
+            joinButton.addActionListener(e -> joinSession(hostField.getText().trim()));
+            panel.add(joinButton);
+
+            JButton leaveButton = new JButton("Leave");
+            leaveButton.addActionListener(e -> leaveSession());
+            panel.add(leaveButton);
 
             add(panel);
             pack();
         }
 
-        /**
-         * Draws a vector line on the DrawingPanel based on the user's input coordinates.
-         * The method validates the coordinates and displays an error message if they are outside the
-         * specified range. If the coordinates are valid, the vector line is drawn on the DrawingPanel.
-         */
-        private void drawVector() {
+        private void hostSession() {
+            Integer port = readPort();
+            if (port == null) {
+                return;
+            }
+            leaveSession();
             try {
-                int x = Integer.parseInt(xCoordinateField.getText());
-                int y = Integer.parseInt(yCoordinateField.getText());
+                hostedServer = new SessionServer(port);
+                hostedServer.start();
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(this, "Unable to host a session: " + ex.getMessage(), "Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            joinSession("localhost");
+        }
 
-                if (x < 0 || x > 1920 || y < 0 || y > 1050) {
-                    JOptionPane.showMessageDialog(this,
-                            "X and Y coordinates must be within the specified range.\nX: 0-1920, Y: 0-1050",
-                            "Input Error", JOptionPane.ERROR_MESSAGE);
-                } else {
-                    drawingPanel.drawVector(x, y);
-                    dispose();
+        private void joinSession(String host) {
+            Integer port = readPort();
+            if (port == null) {
+                return;
+            }
+            SessionClient previous = drawingPanel.getSession();
+            if (previous != null) {
+                previous.close();
+            }
+            try {
+                SessionClient client = new SessionClient(drawingPanel, host, port);
+                client.start();
+                drawingPanel.setSession(client);
+                dispose();
+            } catch (IOException ex) {
+                drawingPanel.setSession(null);
+                JOptionPane.showMessageDialog(this, "Unable to join the session: " + ex.getMessage(), "Error",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        private void leaveSession() {
+            SessionClient client = drawingPanel.getSession();
+            if (client != null) {
+                client.close();
+                drawingPanel.setSession(null);
+            }
+            if (hostedServer != null) {
+                hostedServer.close();
+                hostedServer = null;
+            }
+        }
+
+        private Integer readPort() {
+            try {
+                int port = Integer.parseInt(portField.getText().trim());
+                if (port < 1 || port > 65535) {
+                    throw new NumberFormatException();
                 }
+                return port;
             } catch (NumberFormatException ex) {
-                JOptionPane.showMessageDialog(this, "Please enter valid coordinates.", "Error",
+                JOptionPane.showMessageDialog(this, "Please enter a port between 1 and 65535.", "Input Error",
                         JOptionPane.ERROR_MESSAGE);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The SessionLoopback class checks that the canvases in a shared session converge. It
+     * starts a SessionServer on an ephemeral local port, connects several headless DrawingPanels
+     * to it and plays scripted rounds of strokes, text, shapes, erasing, moves, undo and clears
+     * on them through the same dispatch TraceReplay uses. Within a round the clients act at the
+     * same time, each in its own band of the canvas; some rounds are played by a single client.
+     * After each round the harness waits until every canvas has the same pixel hash, and a round
+     * of undo must bring back the canvas of the round it undoes, so that an undo that loses
+     * what other clients drew in the meantime is caught as well.
+     *
+     * Run it with: java Canvas$SessionLoopback [--clients N] [--timeout-ms N]
+     *
+     * The process exits with status 1 when the canvases do not converge in time or an undo
+     * does not restore the expected canvas.
+     */
+static class SessionLoopback {
+        // Bands are a whole number of pixel blocks high, so that no block spans two clients.
+        static final int BAND_HEIGHT = 2 * DrawOp.PIXEL_BLOCK;
+        static final int WIDTH = 640;
+        // Each round, optionally followed by the earlier round whose canvas it must restore.
+        static final String[][] ROUNDS = { { "strokes" }, { "text" }, { "shapes" }, { "undo", "text" },
+                { "eraser" }, { "move" }, { "undo", "eraser" }, { "edge" }, { "undo", "eraser" }, { "clear" },
+                { "strokes" }, { "jump" } };
+
+        public static void main(String[] args) throws Exception {
+            System.setProperty("java.awt.headless", "true");
+            int clients = 3;
+            long timeoutMillis = 10000;
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "--clients":
+                        clients = Math.max(2, Integer.parseInt(args[i + 1]));
+                        break;
+                    case "--timeout-ms":
+                        timeoutMillis = Long.parseLong(args[i + 1]);
+                        break;
+                    default:
+                        System.err.println("Unknown option " + args[i]);
+                        System.exit(2);
+                }
+            }
+
+            SessionServer server = new SessionServer(0);
+            server.start();
+            int height = clients * BAND_HEIGHT;
+            DrawingPanel[] panels = new DrawingPanel[clients];
+            EventQueue.invokeAndWait(() -> {
+                for (int i = 0; i < panels.length; i++) {
+                    panels[i] = new DrawingPanel();
+                    panels[i].setSize(WIDTH, height);
+                    BufferedImage blank = new BufferedImage(WIDTH, height, BufferedImage.TYPE_INT_ARGB);
+                    Graphics2D g = blank.createGraphics();
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, WIDTH, height);
+                    g.dispose();
+                    panels[i].setImage(blank);
+                    try {
+                        SessionClient client = new SessionClient(panels[i], "localhost", server.getPort());
+                        panels[i].setSession(client);
+                        client.start();
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            });
+            for (DrawingPanel panel : panels) {
+                while (panel.getSession() != null && !panel.getSession().isConnected()) {
+                    Thread.sleep(10);
+                }
+            }
+
+            boolean failed = false;
+            Map<String, String> hashes = new HashMap<>();
+            for (String[] entry : ROUNDS) {
+                String round = entry[0];
+                List<List<String>> scripts = new ArrayList<>();
+                for (int i = 0; i < clients; i++) {
+                    scripts.add(script(round, i, clients));
+                }
+                long start = System.nanoTime();
+                for (int step = 0; ; step++) {
+                    boolean played = false;
+                    for (int i = 0; i < clients; i++) {
+                        if (step < scripts.get(i).size()) {
+                            DrawingPanel panel = panels[i];
+                            String[] fields = scripts.get(i).get(step).split(" ");
+                            EventQueue.invokeAndWait(() -> TraceReplay.dispatch(panel, fields));
+                            played = true;
+                        }
+                    }
+                    if (!played) {
+                        break;
+                    }
+                }
+                String hash = awaitConvergence(panels, timeoutMillis);
+                if (hash == null) {
+                    System.out.printf("FAIL: %-8s canvases differ after %d ms%n", round, timeoutMillis);
+                    failed = true;
+                    break;
+                }
+                System.out.printf("%-8s converged in %.1f ms%n", round, (System.nanoTime() - start) / 1e6);
+                if (entry.length > 1 && !hash.equals(hashes.get(entry[1]))) {
+                    System.out.printf("FAIL: %-8s did not restore the canvas after %s%n", round, entry[1]);
+                    failed = true;
+                    break;
+                }
+                hashes.put(round, hash);
+            }
+            for (DrawingPanel panel : panels) {
+                if (panel.getSession() == null) {
+                    System.out.println("FAIL: a client lost its connection");
+                    failed = true;
+                }
+            }
+            EventQueue.invokeAndWait(() -> {
+                for (DrawingPanel panel : panels) {
+                    if (panel.getSession() != null) {
+                        panel.getSession().close();
+                    }
+                }
+            });
+            // Give the clients' network threads time to stop before the server drops their connections.
+            Thread.sleep(100);
+            server.close();
+            if (!failed) {
+                System.out.printf("pixel hash:  %s%n", hash(panels[0]));
+            }
+            System.exit(failed ? 1 : 0);
+        }
+
+        /**
+         * Returns the trace lines a client plays in a round, confined to its band of the canvas.
+         */
+        static List<String> script(String round, int client, int clients) {
+            int top = client * BAND_HEIGHT;
+            int color = Color.HSBtoRGB((float) client / clients, 0.8f, 0.8f);
+            List<String> lines = new ArrayList<>();
+            switch (round) {
+                case "strokes":
+                    lines.add(action("pen", color, 8));
+                    drag(lines, 30, top + 30, 300, top + 90, 20);
+                    drag(lines, 330, top + 100, 600, top + 28, 12);
+                    break;
+                case "text":
+                    lines.add(action("text", "peer " + client, "Dialog", Font.BOLD, 28, 40, top + 70, color));
+                    break;
+                case "shapes":
+                    lines.add(action("shape", "Polygon", 5, 5, true, 0, 15.0, color, 2, 520, top + 64));
+                    break;
+                case "eraser":
+                    lines.add(action("eraser", true));
+                    drag(lines, 60, top + 64, 560, top + 64, 25);
+                    lines.add(action("eraser", false));
+                    break;
+                case "move":
+                    lines.add(action("select", true));
+                    drag(lines, 20, top + 20, 140, top + 108, 4);
+                    drag(lines, 80, top + 64, 280, top + 64, 8);
+                    lines.add(action("deselect"));
+                    lines.add(action("select", false));
+                    break;
+                case "edge":
+                    // A selection dragged past the right edge of the canvas, then moved so that
+                    // part of it hangs off the left edge.
+                    lines.add(action("select", true));
+                    drag(lines, WIDTH - 160, top + 16, WIDTH + 40, top + 100, 4);
+                    drag(lines, WIDTH - 100, top + 60, 40, top + 68, 8);
+                    lines.add(action("deselect"));
+                    lines.add(action("select", false));
+                    break;
+                case "undo":
+                    lines.add(action("undo"));
+                    break;
+                case "clear":
+                    if (client == 0) {
+                        lines.add(action("clear"));
+                    }
+                    break;
+                case "jump":
+                    if (client == clients - 1) {
+                        lines.add(action("jump", 2));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown round " + round);
+            }
+            return lines;
+        }
+
+        private static void drag(List<String> lines, int x0, int y0, int x1, int y1, int steps) {
+            lines.add("P 0 " + x0 + " " + y0 + " 0");
+            for (int i = 1; i <= steps; i++) {
+                lines.add("D 0 " + (x0 + (x1 - x0) * i / steps) + " " + (y0 + (y1 - y0) * i / steps) + " 0");
+            }
+            lines.add("R 0 " + x1 + " " + y1 + " 0");
+        }
+
+        private static String action(String name, Object... args) {
+            StringBuilder line = new StringBuilder("A 0 ").append(name);
+            for (Object arg : args) {
+                line.append(' ').append(InputTraceRecorder.encode(String.valueOf(arg)));
+            }
+            return line.toString();
+        }
+
+        /**
+         * Waits until every panel has the same pixel hash and it has stayed the same for a few
+         * frame intervals. Returns that hash, or null if the panels do not agree in time.
+         */
+        static String awaitConvergence(DrawingPanel[] panels, long timeoutMillis) throws Exception {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            String agreed = null;
+            int stable = 0;
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+                String first = hash(panels[0]);
+                boolean same = true;
+                for (int i = 1; i < panels.length && same; i++) {
+                    same = first.equals(hash(panels[i]));
+                }
+                if (same && first.equals(agreed)) {
+                    if (++stable >= 5) {
+                        return agreed;
+                    }
+                } else {
+                    agreed = same ? first : null;
+                    stable = 0;
+                }
             }
+            return null;
+        }
+
+        private static String hash(DrawingPanel panel) throws Exception {
+            BufferedImage[] image = new BufferedImage[1];
+            EventQueue.invokeAndWait(() -> image[0] = panel.getImage());
+            return TraceReplay.pixelHash(image[0]);
         }
     }
 }
\ No newline at end of file